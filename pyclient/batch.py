@@ -0,0 +1,109 @@
+"""Runs shell commands from a file, one per line, over a single pipelined connection.
+
+Up to WINDOW requests are in flight at once and the server runs them concurrently, so the run
+isn't bound by one round trip per command. Commands may complete in any order, except that
+"cd" waits for the commands before it. Only failures are printed.
+
+With --group, runs of write, mkdir and rm commands are sent as BATCH requests of up to about
+1 MB, each applied by the server as one transaction: a failing command fails its whole group,
+and a command sees the effect of earlier ones in its group. A group holding a mkdir or rm is
+waited for before later commands are sent, so they can rely on it. Usage:
+
+    python3 batch.py [--window N] [--group] [file]    (reads stdin without a file)
+"""
+import argparse
+import io
+import sys
+import time
+
+import client
+
+WINDOW = 128
+
+
+def send(conn, command):
+    parts = command.split(" ")
+    if parts[0] == "write":
+        data = command.split(" ", 2)[2].encode() if len(parts) > 2 else b""
+        return conn.send_write(parts[1], io.BytesIO(data), len(data))
+    if parts[0] == "read":
+        return conn.send_read(parts[1], io.BytesIO())
+    return conn.send_command(command)
+
+
+def encode(command):
+    """The batch operation for a write, mkdir or rm command, or None for other commands."""
+    parts = command.split(" ")
+    if parts[0] == "write" and len(parts) > 1:
+        data = command.split(" ", 2)[2].encode() if len(parts) > 2 else b""
+        return client.Connection.encode_operation(client.BATCH_WRITE, parts[1], data)
+    if parts[0] in ("mkdir", "rm") and len(parts) > 1:
+        flag = "-p" if parts[0] == "mkdir" else "-r"
+        recursive = parts[1] == flag and len(parts) > 2
+        op_type = client.BATCH_MKDIR if parts[0] == "mkdir" else client.BATCH_DELETE
+        return client.Connection.encode_operation(op_type, parts[2 if recursive else 1], recursive=recursive)
+    return None
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Run commands over one pipelined connection.")
+    parser.add_argument("--window", type=int, default=WINDOW, help="requests in flight at once")
+    parser.add_argument("--group", action="store_true", help="send writes, mkdirs and rms in batches")
+    parser.add_argument("file", nargs="?", type=argparse.FileType("r"), default=sys.stdin)
+    args = parser.parse_args()
+
+    conn = client.Connection()
+    outstanding = {}
+    failed = 0
+    count = 0
+
+    def complete_one():
+        nonlocal failed
+        request_id, result = conn.receive()
+        label, size = outstanding.pop(request_id)
+        if isinstance(result, client.ServerError):
+            failed += size
+            print(f"{label}: Error: {result}")
+
+    def submit(send_request, label, size=1):
+        while len(outstanding) >= args.window:
+            complete_one()
+        outstanding[send_request()] = (label, size)
+
+    group, group_size, group_barrier = [], 0, False
+
+    def flush_group():
+        nonlocal group, group_size, group_barrier
+        if group:
+            operations = [operation for operation, _ in group]
+            submit(lambda: conn.send_batch(operations), f"batch of {len(group)} ({group[0][1]} ...)", len(group))
+            while group_barrier and outstanding:
+                complete_one()
+        group, group_size, group_barrier = [], 0, False
+
+    start = time.perf_counter()
+    for line in args.file:
+        command = line.rstrip("\n")
+        if not command.strip():
+            continue
+        count += 1
+        operation = encode(command) if args.group else None
+        if operation is not None and len(operation) < client.MAX_PAYLOAD:
+            if group_size + len(operation) > client.MAX_PAYLOAD:
+                flush_group()
+            group.append((operation, command))
+            group_size += len(operation)
+            group_barrier = group_barrier or not command.startswith("write ")
+            continue
+        flush_group()
+        submit(lambda: send(conn, command), command)
+    flush_group()
+    while outstanding:
+        complete_one()
+    elapsed = time.perf_counter() - start
+    conn.close()
+    print(f"{count} commands in {elapsed:.2f}s ({count / elapsed:.0f}/s), {failed} failed")
+
+
+if __name__ == "__main__":
+    main()
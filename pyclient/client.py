@@ -1,38 +1,234 @@
+import io
+import os
 import socket
+import struct
 
 SERVER_ADDRESS = 'localhost'
 SERVER_PORT = 8080
 TIMEOUT = 5  # Timeout in seconds
 
+# Binary protocol, see components/Frame.java: | opcode (1) | request id (4) | payload length (4) | payload |
+MAGIC = b"\xd5"
+HEADER = struct.Struct(">BII")
+COMMAND, WRITE, READ, DATA, BATCH, READ_RANGE, WRITE_AT = 1, 2, 3, 4, 5, 6, 7
+OK, END, ERROR = 64, 65, 66
+CHUNK_SIZE = 64 * 1024
+MAX_PAYLOAD = 1024 * 1024
+# Operations of a BATCH frame: | type (1) | flags (1) | path length (4) | path | data length (4) | data |
+BATCH_WRITE, BATCH_MKDIR, BATCH_DELETE = 1, 2, 3
+BATCH_RECURSIVE = 1
+
+
+class ServerError(Exception):
+    """The server answered a request with an ERROR frame."""
+
+
+class Connection:
+    """A connection speaking the framed binary protocol. File bodies are streamed in chunks.
+
+    Requests can be pipelined: the send_* methods return a request id without waiting, and
+    receive() returns whichever request completes next, since the server may answer out of order.
+    """
+
+    def __init__(self, address=SERVER_ADDRESS, port=SERVER_PORT, timeout=TIMEOUT):
+        self.sock = socket.create_connection((address, port), timeout)
+        self.sock.sendall(MAGIC)
+        self.next_id = 0
+        self.sinks = {}  # request id -> where its DATA frames go
+        self.results = {}  # completed requests nobody has waited for yet
+
+    def close(self):
+        self.sock.close()
+
+    def _new_id(self, sink):
+        self.next_id += 1
+        self.sinks[self.next_id] = sink
+        return self.next_id
+
+    def _send(self, op, request_id, payload=b""):
+        self.sock.sendall(HEADER.pack(op, request_id, len(payload)) + payload)
+
+    def _recv_exact(self, n):
+        buffer = bytearray()
+        while len(buffer) < n:
+            chunk = self.sock.recv(n - len(buffer))
+            if not chunk:
+                raise ConnectionError("Server closed the connection.")
+            buffer += chunk
+        return bytes(buffer)
+
+    def send_command(self, text):
+        request_id = self._new_id(io.BytesIO())
+        self._send(COMMAND, request_id, text.encode())
+        return request_id
+
+    def send_write(self, name, source, length):
+        """Sends an upload of `length` bytes read from the file object `source`."""
+        request_id = self._new_id(None)
+        self._send(WRITE, request_id, struct.pack(">Q", length) + name.encode())
+        remaining = length
+        while remaining > 0:
+            chunk = source.read(min(CHUNK_SIZE, remaining))
+            if not chunk:
+                raise EOFError(f"Source ended {remaining} bytes early")
+            self._send(DATA, request_id, chunk)
+            remaining -= len(chunk)
+        return request_id
+
+    @staticmethod
+    def encode_operation(op_type, path, data=b"", recursive=False):
+        """Encodes one operation of a batch, such as (BATCH_WRITE, "a.txt", b"hello")."""
+        path = path.encode()
+        return (struct.pack(">BBI", op_type, BATCH_RECURSIVE if recursive else 0, len(path)) + path
+                + struct.pack(">I", len(data)) + data)
+
+    def send_batch(self, operations):
+        """Sends operations encoded by encode_operation, to be applied together or not at all.
+        Together they must fit in MAX_PAYLOAD bytes."""
+        request_id = self._new_id(io.BytesIO())
+        self._send(BATCH, request_id, b"".join(operations))
+        return request_id
+
+    def send_read(self, name, sink):
+        """Asks for the file `name`; its contents are written to the file object `sink`."""
+        request_id = self._new_id(sink)
+        self._send(READ, request_id, name.encode())
+        return request_id
+
+    def send_read_range(self, name, offset, length, sink):
+        """Asks for `length` bytes of `name` from `offset`, counted from the end if negative."""
+        request_id = self._new_id(sink)
+        self._send(READ_RANGE, request_id, struct.pack(">qq", offset, length) + name.encode())
+        return request_id
+
+    def send_write_at(self, name, offset, data):
+        """Writes `data` into `name` at `offset`, or appends it if offset is -1. The data must fit
+        in one frame; pipelined writes to one file may be applied in any order."""
+        request_id = self._new_id(io.BytesIO())
+        name = name.encode()
+        self._send(WRITE_AT, request_id, struct.pack(">qI", offset, len(name)) + name + data)
+        return request_id
+
+    def receive(self):
+        """Waits for the next request to complete and returns (request id, result). The result
+        is the reply text, the sink of a streamed reply, or a ServerError."""
+        while True:
+            op, request_id, length = HEADER.unpack(self._recv_exact(HEADER.size))
+            payload = self._recv_exact(length)
+            if request_id not in self.sinks:
+                raise ConnectionError(f"Reply for unknown request {request_id}")
+            if op == DATA:
+                self.sinks[request_id].write(payload)
+                continue
+            sink = self.sinks.pop(request_id)
+            if op == OK:
+                return request_id, payload.decode()
+            if op == END:
+                return request_id, sink
+            return request_id, ServerError(payload.decode())
+
+    def wait(self, request_id):
+        """Returns the result of the request, raising its ServerError if it failed."""
+        while request_id not in self.results:
+            completed, result = self.receive()
+            self.results[completed] = result
+        result = self.results.pop(request_id)
+        if isinstance(result, ServerError):
+            raise result
+        return result
+
+    def command(self, text):
+        """Runs a text command such as "pwd" or "ls" and returns its response."""
+        result = self.wait(self.send_command(text))
+        return result if isinstance(result, str) else result.getvalue().decode()
+
+    def write(self, name, source, length):
+        """Uploads `length` bytes read from the file object `source` into the file `name`."""
+        return self.wait(self.send_write(name, source, length))
+
+    def read(self, name, sink):
+        """Downloads the file `name` into the file object `sink`; returns its size."""
+        start = sink.tell()
+        self.wait(self.send_read(name, sink))
+        return sink.tell() - start
+
+
+    def read_range(self, name, offset, length):
+        """Returns up to `length` bytes of the file `name` from `offset`."""
+        return self.wait(self.send_read_range(name, offset, length, io.BytesIO())).getvalue()
+
+    def write_at(self, name, offset, data):
+        """Writes `data` into the file `name` at `offset`, or at its end if offset is -1, in
+        frames of up to a chunk, each waited for so they apply in order."""
+        for start in range(0, max(len(data), 1), CHUNK_SIZE):
+            result = self.wait(self.send_write_at(name, offset, data[start:start + CHUNK_SIZE]))
+            if offset != -1:
+                offset += CHUNK_SIZE
+        return result
+
+
+def run(conn, command):
+    parts = command.split(" ")
+    cmd = parts[0]
+    if cmd == "write":
+        # Everything after the file name is the data, whitespace included.
+        data = command.split(" ", 2)[2].encode() if len(parts) > 2 else b""
+        return conn.write(parts[1], io.BytesIO(data), len(data))
+    if cmd == "read":
+        data = io.BytesIO()
+        conn.read(parts[1], data)
+        return data.getvalue().decode(errors="replace")
+    if cmd == "tail":
+        # tail <file> [bytes]: the end of the file, 1 KB by default.
+        length = int(parts[2]) if len(parts) > 2 else 1024
+        return conn.read_range(parts[1], -length, length).decode(errors="replace")
+    if cmd == "append":
+        data = command.split(" ", 2)[2].encode() if len(parts) > 2 else b""
+        return conn.write_at(parts[1], -1, data)
+    if cmd == "pwrite":
+        data = command.split(" ", 3)[3].encode() if len(parts) > 3 else b""
+        return conn.write_at(parts[1], int(parts[2]), data)
+    if cmd == "put":
+        # put <local file> [remote name]
+        remote = parts[2] if len(parts) > 2 else os.path.basename(parts[1])
+        with open(parts[1], "rb") as source:
+            return conn.write(remote, source, os.fstat(source.fileno()).st_size)
+    if cmd == "get":
+        # get <remote name> [local file]
+        local = parts[2] if len(parts) > 2 else parts[1]
+        with open(local, "wb") as sink:
+            size = conn.read(parts[1], sink)
+        return f"Saved {size} bytes to {local}."
+    return conn.command(command)
+
+
 def main():
     try:
-        with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
-            s.settimeout(TIMEOUT)  # Set timeout for socket operations
-            s.connect((SERVER_ADDRESS, SERVER_PORT))
-            print(f"Connected to server at {SERVER_ADDRESS}:{SERVER_PORT}")
-            
+        conn = Connection()
+        print(f"Connected to server at {SERVER_ADDRESS}:{SERVER_PORT}")
+        try:
             while True:
-                s.send("pwd\n".encode())
-                data = s.recv(1024).decode().strip()
-                command = input(f"{data}@{SERVER_ADDRESS}:{SERVER_PORT} > ")
+                cwd = conn.command("pwd")
+                command = input(f"{cwd}@{SERVER_ADDRESS}:{SERVER_PORT} > ")
                 if command.lower() == "exit":
                     print("Exiting...")
                     break
-                
-                s.sendall((command + "\n").encode())  # Send command to server with newline character
 
                 try:
-                    data = s.recv(1024)  # Receive response from server
-                    if not data:
-                        print("Server closed the connection.")
-                        break
-                    
-                    print(data.decode().strip())
-                except socket.timeout:
-                    print("Socket timed out waiting for a response.")
+                    print(run(conn, command).rstrip("\n"))
+                except ServerError as e:
+                    print(f"Error: {e}")
+                except (ConnectionError, socket.timeout):
+                    raise
+                except (IndexError, ValueError, OSError) as e:
+                    print(f"Error: {e}")
                 except KeyboardInterrupt:
                     print("\nInterrupted by user. Exiting...")
                     break
+        finally:
+            conn.close()
+    except socket.timeout:
+        print("Socket timed out waiting for a response.")
     except Exception as e:
         print('An error occurred:', e)
 
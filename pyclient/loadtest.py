@@ -0,0 +1,89 @@
+"""Opens many concurrent connections to the file system server and measures command latency.
+
+Every connection stays open for the whole run and sends REQUESTS commands one after another,
+so the server has to keep all of them served at once. Usage:
+
+    python3 loadtest.py [connections ...]    (default: 10 1000 10000)
+"""
+import asyncio
+import resource
+import sys
+import time
+
+SERVER_ADDRESS = 'localhost'
+SERVER_PORT = 8080
+REQUESTS = 20
+COMMAND = b"pwd\n"
+# Connections opened at the same time, so the accept backlog doesn't overflow.
+CONNECT_CONCURRENCY = 500
+
+
+class Barrier:
+    """Lets the clients start sending only once every one of them has connected or failed to."""
+
+    def __init__(self, parties):
+        self.waiting = parties
+        self.all_arrived = asyncio.Event()
+
+    def arrive(self):
+        self.waiting -= 1
+        if self.waiting == 0:
+            self.all_arrived.set()
+
+
+async def client(connect_slots, barrier, latencies):
+    try:
+        async with connect_slots:
+            reader, writer = await asyncio.open_connection(SERVER_ADDRESS, SERVER_PORT)
+    finally:
+        barrier.arrive()
+    # Hold every connection open before any of them sends, so they all count at once.
+    await barrier.all_arrived.wait()
+    try:
+        for _ in range(REQUESTS):
+            start = time.perf_counter()
+            writer.write(COMMAND)
+            await writer.drain()
+            if not await reader.readline():
+                raise ConnectionError("Server closed the connection.")
+            latencies.append(time.perf_counter() - start)
+    finally:
+        writer.close()
+
+
+def percentile(values, fraction):
+    return values[min(len(values) - 1, int(len(values) * fraction))]
+
+
+async def run(connections):
+    connect_slots = asyncio.Semaphore(CONNECT_CONCURRENCY)
+    barrier = Barrier(connections)
+    latencies = []
+    tasks = [asyncio.create_task(client(connect_slots, barrier, latencies)) for _ in range(connections)]
+    await barrier.all_arrived.wait()
+    begin = time.perf_counter()
+    results = await asyncio.gather(*tasks, return_exceptions=True)
+    elapsed = time.perf_counter() - begin
+
+    failed = sum(1 for r in results if isinstance(r, Exception))
+    latencies.sort()
+    if not latencies:
+        print(f"{connections:>6} connections: all {failed} failed")
+        return
+    print(f"{connections:>6} connections: {len(latencies)} requests in {elapsed:.2f}s "
+          f"({len(latencies) / elapsed:.0f}/s), latency ms p50 {percentile(latencies, 0.5) * 1000:.2f} "
+          f"p99 {percentile(latencies, 0.99) * 1000:.2f} max {latencies[-1] * 1000:.2f}, {failed} failed")
+
+
+def main():
+    counts = [int(arg) for arg in sys.argv[1:]] or [10, 1000, 10000]
+    soft, hard = resource.getrlimit(resource.RLIMIT_NOFILE)
+    wanted = max(counts) + 100
+    if soft < wanted:
+        resource.setrlimit(resource.RLIMIT_NOFILE, (min(wanted, hard), hard))
+    for connections in counts:
+        asyncio.run(run(connections))
+
+
+if __name__ == "__main__":
+    main()
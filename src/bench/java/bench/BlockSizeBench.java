@@ -0,0 +1,72 @@
+package bench;
+
+import components.Inode;
+import filesystem.FileSystem;
+import filesystem.JournalRecord;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a file with {@link FileSystem#createFile(String, byte[], int)} at each block size,
+ * reads it back and reports write and read throughput and the size of the file's metadata
+ * record, which is what the journal, checkpoints and replicas store for it. Needs the Raft
+ * block servers running.
+ *
+ * Arguments: [block sizes in bytes, 64 KB,1 MB,4 MB] [file size in bytes, 4 MB] [rounds, 3]
+ */
+public class BlockSizeBench {
+    public static void main(String[] args) throws Exception {
+        int[] blockSizes = Arrays.stream((args.length > 0 ? args[0] : "65536,1048576,4194304").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4 * 1024 * 1024;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        FileSystem fs = new FileSystem("bench", "bench");
+        byte[] data = new byte[fileSize];
+        Arrays.fill(data, (byte) 'x');
+
+        for (int blockSize : blockSizes) {
+            String name = "f" + blockSize;
+            long writeNanos = 0;
+            long readNanos = 0;
+            int metadataBytes = 0;
+            // The first round warms up and isn't counted.
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                if (!fs.createFile(name, data, blockSize)) {
+                    throw new IllegalStateException("Could not create " + name);
+                }
+                long written = System.nanoTime();
+                byte[] read = fs.readFile(name);
+                if (read == null || read.length != fileSize) {
+                    throw new IllegalStateException("Could not read " + name);
+                }
+                if (round > 0) {
+                    writeNanos += written - start;
+                    readNanos += System.nanoTime() - written;
+                }
+                metadataBytes = JournalRecord.create(find(fs, name)).encode().length;
+                fs.deleteFile(name);
+            }
+            out.printf("block %8d B: write %7.2f MB/s, read %7.2f MB/s, metadata %7d B (%d B file)%n",
+                    blockSize, (double) fileSize * rounds / writeNanos * 1e3, (double) fileSize * rounds / readNanos * 1e3,
+                    metadataBytes, fileSize);
+        }
+        System.exit(0);
+    }
+
+    private static Inode find(FileSystem fs, String name) throws Exception {
+        List<Inode> page = fs.listDir(".", null, FileSystem.LIST_PAGE_SIZE);
+        for (Inode inode : page) {
+            if (inode.getName().equals(name)) {
+                return inode;
+            }
+        }
+        throw new IllegalStateException(name + " is not listed");
+    }
+}
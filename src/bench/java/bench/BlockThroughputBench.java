@@ -0,0 +1,91 @@
+package bench;
+
+import components.Block;
+import components.FileBlock;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stores and then fetches blocks through {@link FileBlock} from N threads, each waiting for its
+ * own request before sending the next, and reports blocks per second. Needs the Raft block
+ * servers running. The blocks are deleted again afterwards.
+ *
+ * Arguments: [block size in bytes, 1000] [thread counts, 1,8,32] [blocks per thread, 150]
+ */
+public class BlockThroughputBench {
+    public static void main(String[] args) throws Exception {
+        int blockSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int[] threadCounts = Arrays.stream((args.length > 1 ? args[1] : "1,8,32").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        int blocksPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 150;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        byte[] data = new byte[blockSize];
+        Arrays.fill(data, (byte) 'x');
+
+        // Warm up the client pool and find the leader.
+        FileBlock warmUp = new FileBlock(Block.allocateBlockIds(1), blockSize);
+        warmUp.saveDataAsync(data).join();
+        warmUp.getData();
+        warmUp.deleteDataAsync().join();
+
+        for (int threads : threadCounts) {
+            int count = threads * blocksPerThread;
+            long startId = Block.allocateBlockIds(count);
+            List<FileBlock> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new FileBlock(startId + i, blockSize));
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> tasks = new ArrayList<>(count);
+            long start = System.nanoTime();
+            for (FileBlock block : blocks) {
+                tasks.add(pool.submit(() -> {
+                    if (!block.saveDataAsync(data).join()) {
+                        throw new IllegalStateException("Could not store block " + block.getBlockID());
+                    }
+                    return null;
+                }));
+            }
+            waitFor(tasks);
+            double storeSeconds = (System.nanoTime() - start) / 1e9;
+
+            tasks.clear();
+            start = System.nanoTime();
+            for (FileBlock block : blocks) {
+                tasks.add(pool.submit(() -> {
+                    byte[] fetched = block.getData();
+                    if (fetched == null || fetched.length != blockSize) {
+                        throw new IllegalStateException("Could not fetch block " + block.getBlockID());
+                    }
+                    return null;
+                }));
+            }
+            waitFor(tasks);
+            double fetchSeconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+
+            for (FileBlock block : blocks) {
+                block.deleteDataAsync().join();
+            }
+            out.printf("%3d threads: store %8.0f blocks/s, fetch %8.0f blocks/s (%d x %d B)%n",
+                    threads, count / storeSeconds, count / fetchSeconds, count, blockSize);
+        }
+        System.exit(0);
+    }
+
+    private static void waitFor(List<Future<?>> tasks) throws Exception {
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+import components.IdAllocator;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares {@link IdAllocator#next()} with the random ids it replaced, one new SecureRandom per
+ * id, from N threads. Also counts how many ids 100k short-lived virtual threads, one id each
+ * like one request each, use up.
+ *
+ * Arguments: [threads, 8] [ids per thread, 10000000] [random ids per thread, 10000]
+ */
+public class IdAllocatorBench {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long idsPerThread = args.length > 1 ? Long.parseLong(args[1]) : 10_000_000;
+        long randomIdsPerThread = args.length > 2 ? Long.parseLong(args[2]) : 10_000;
+
+        File highWater = File.createTempFile("ids", "");
+        highWater.delete();
+        highWater.deleteOnExit();
+        IdAllocator ids = new IdAllocator(highWater, 1, 1024);
+
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 100_000; i++) {
+                pool.submit(ids::next);
+            }
+        }
+        // The next range starts after every id handed out so far.
+        System.out.println("100k virtual threads taking one id each used " + (ids.allocateRange(1) - 1) + " ids");
+
+        for (int round = 0; round < 3; round++) {
+            double seconds = run(threads, () -> {
+                for (long i = 0; i < idsPerThread; i++) {
+                    ids.next();
+                }
+            });
+            System.out.printf("IdAllocator.next():            %8.1f ns per id (%d threads)%n",
+                    seconds * 1e9 / (threads * idsPerThread), threads);
+        }
+        double seconds = run(threads, () -> {
+            for (long i = 0; i < randomIdsPerThread; i++) {
+                new SecureRandom().nextLong();
+            }
+        });
+        System.out.printf("new SecureRandom().nextLong(): %8.1f ns per id (%d threads)%n",
+                seconds * 1e9 / (threads * randomIdsPerThread), threads);
+    }
+
+    private static double run(int threads, Runnable task) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(task);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
@@ -0,0 +1,103 @@
+package bench;
+
+import filesystem.LongHashMap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the heap a {@code HashMap<Long, V>} and a {@link LongHashMap} need per entry, then
+ * measures {@link LongHashMap#get(long)} throughput from N readers while one thread keeps
+ * putting and removing entries. Run with a fixed heap (e.g. -Xms2g -Xmx2g) for stable sizes.
+ *
+ * Arguments: [entries, 1000000] [reader counts, 1,4,16] [gets per run, 20000000]
+ */
+public class LongHashMapBench {
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int[] readerCounts = Arrays.stream((args.length > 1 ? args[1] : "1,4,16").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        long gets = args.length > 2 ? Long.parseLong(args[2]) : 20_000_000;
+
+        // The values are shared, so only the table's own overhead is counted.
+        Object value = new Object();
+        long before = usedHeap();
+        Map<Long, Object> boxed = new HashMap<>();
+        for (long i = 0; i < entries; i++) {
+            boxed.put(i * 7919, value);
+        }
+        System.out.printf("HashMap<Long, V>: %6.1f B per entry%n", (usedHeap() - before) / (double) entries);
+        // Otherwise the table may be collected as soon as it is filled, before the heap is measured.
+        Reference.reachabilityFence(boxed);
+        boxed = null;
+
+        before = usedHeap();
+        LongHashMap<Object> primitive = new LongHashMap<>();
+        for (long i = 0; i < entries; i++) {
+            primitive.put(i * 7919, value);
+        }
+        System.out.printf("LongHashMap<V>:   %6.1f B per entry%n", (usedHeap() - before) / (double) entries);
+        Reference.reachabilityFence(primitive);
+        primitive = null;
+
+        LongHashMap<Long> map = new LongHashMap<>();
+        for (long i = 0; i < entries; i++) {
+            map.put(i, i);
+        }
+        for (int readers : readerCounts) {
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread writer = new Thread(() -> {
+                for (long i = entries; !stop.get(); i++) {
+                    map.put(i, i);
+                    map.remove(i - 1000);
+                }
+            });
+            writer.start();
+
+            LongAdder done = new LongAdder();
+            AtomicLong wrong = new AtomicLong();
+            Thread[] threads = new Thread[readers];
+            long start = System.nanoTime();
+            for (int t = 0; t < readers; t++) {
+                long seed = t + 1;
+                threads[t] = new Thread(() -> {
+                    long x = seed;
+                    long n = gets / readers;
+                    for (long i = 0; i < n; i++) {
+                        x = x * 6364136223846793005L + 1442695040888963407L;
+                        long key = (x >>> 1) % (entries - 1000);
+                        Long found = map.get(key);
+                        if (found == null || found != key) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                    done.add(n);
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            stop.set(true);
+            writer.join();
+            System.out.printf("%3d readers + 1 writer: %6.1f M gets/s, %d wrong%n", readers, done.sum() / seconds / 1e6, wrong.get());
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
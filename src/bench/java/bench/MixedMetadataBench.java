@@ -0,0 +1,86 @@
+package bench;
+
+import filesystem.FileSystem;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * N threads share one {@link FileSystem}, each in a directory of its own, and loop mkdir d<i>,
+ * write f<i>, read f<i> and rm f<i>. Reports operations per second. With a data size of 0 the
+ * files have no blocks, so only the metadata path is measured and no block servers are needed.
+ * The first thread count is run once more beforehand as a warm-up.
+ *
+ * Arguments: [data size in bytes, 0] [seconds per run, 5] [thread counts, 1,2,4,8,16]
+ */
+public class MixedMetadataBench {
+    public static void main(String[] args) throws Exception {
+        int dataSize = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+        int[] threadCounts = Arrays.stream((args.length > 2 ? args[2] : "1,2,4,8,16").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        FileSystem fs = new FileSystem("bench", "bench");
+        byte[] data = new byte[dataSize];
+        Arrays.fill(data, (byte) 'x');
+
+        for (int run = 0; run <= threadCounts.length; run++) {
+            int threads = threadCounts[Math.max(0, run - 1)];
+            AtomicBoolean stop = new AtomicBoolean();
+            LongAdder ops = new LongAdder();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            CountDownLatch ready = new CountDownLatch(threads);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                String dir = "run" + run + "-" + t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        fs.createDir(dir);
+                        fs.changeDir(dir);
+                        ready.countDown();
+                        ready.await();
+                        for (int i = 0; !stop.get(); i++) {
+                            fs.createDir("d" + i);
+                            fs.createFile("f" + i, data);
+                            byte[] read = fs.readFile("f" + i);
+                            if (read == null || read.length != dataSize) {
+                                throw new IllegalStateException("Could not read f" + i);
+                            }
+                            fs.deleteFile("f" + i);
+                            ops.add(4);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        ready.countDown();
+                    }
+                });
+                workers[t].start();
+            }
+            ready.await();
+            long before = ops.sum();
+            long start = System.nanoTime();
+            Thread.sleep((long) (seconds * 1000));
+            long done = ops.sum() - before;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            stop.set(true);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (failure.get() != null) {
+                failure.get().printStackTrace(out);
+                System.exit(1);
+            }
+            if (run > 0) {
+                out.printf("%3d threads: %9.0f ops/s%n", threads, done / elapsed);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import filesystem.FileSystem;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Reads whole files with {@link FileSystem#readFile(String)} and reports the throughput and the
+ * bytes the calling thread allocates per byte read. Block payloads arrive on the Raft client's
+ * threads, so the allocation is what readFile itself spends assembling the result. Needs the
+ * Raft block servers running.
+ *
+ * Arguments: [file sizes in bytes, 1 KB to 64 MB] [bytes to read per size, 256 MB]
+ */
+public class ReadFileBench {
+    public static void main(String[] args) throws Exception {
+        long[] sizes = Arrays.stream((args.length > 0 ? args[0] : "1024,65536,1048576,16777216,67108864").split(","))
+                .mapToLong(Long::parseLong).toArray();
+        long bytesPerSize = args.length > 1 ? Long.parseLong(args[1]) : 256L * 1024 * 1024;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        FileSystem fs = new FileSystem("bench", "bench");
+
+        for (long size : sizes) {
+            String name = "f" + size;
+            byte[] data = new byte[Math.toIntExact(size)];
+            Arrays.fill(data, (byte) 'x');
+            if (!fs.createFile(name, data)) {
+                throw new IllegalStateException("Could not create " + name);
+            }
+
+            int reads = (int) Math.max(3, Math.min(2000, bytesPerSize / size));
+            for (int i = 0; i < Math.min(reads, 5); i++) {
+                fs.readFile(name);
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                byte[] read = fs.readFile(name);
+                if (read == null || read.length != size) {
+                    throw new IllegalStateException("Could not read " + name);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double allocatedPerByte = (threads.getCurrentThreadAllocatedBytes() - allocated) / (double) reads / size;
+            fs.deleteFile(name);
+
+            out.printf("%9d B: %9.1f MB/s, %6.2f bytes allocated per byte read (%d reads)%n",
+                    size, size * reads / seconds / 1e6, allocatedPerByte, reads);
+        }
+        System.exit(0);
+    }
+}
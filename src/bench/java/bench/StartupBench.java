@@ -0,0 +1,84 @@
+package bench;
+
+import components.Extent;
+import components.Inode;
+import filesystem.FileSystem;
+import filesystem.MetadataCheckpoint;
+import interfaces.FileType;
+import io.github.cdimascio.dotenv.Dotenv;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes a checkpoint of a namespace of files spread over directories under the root straight
+ * to METADATA_DIR, then times how long the {@link FileSystem} constructor takes to load it.
+ * METADATA_DIR must be empty, so nothing else is replayed. Inode numbers and directory block ids
+ * start at 2^40, clear of what the allocators hand out.
+ *
+ * Arguments: [files, 1000000] [directories, 1000]
+ */
+public class StartupBench {
+    private static final long FIRST_ID = 1L << 40;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int dirs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        File metadataDir = new File(Dotenv.load().get("METADATA_DIR", "metadata"));
+        String[] existing = metadataDir.list();
+        if (existing != null && existing.length > 0) {
+            throw new IllegalStateException(metadataDir + " is not empty");
+        }
+        metadataDir.mkdirs();
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // Parents before children and siblings together, as FileSystem.checkpoint lists them.
+        Date now = new Date();
+        Inode root = new Inode("bench", "bench", "", 0, FileType.DIRECTORY, now, now, now, 0, new Extent(0, 1, 0));
+        List<Inode> inodes = new ArrayList<>(files + dirs + 1);
+        inodes.add(root);
+        long nextId = FIRST_ID;
+        int filesPerDir = (files + dirs - 1) / dirs;
+        for (int d = 0; d < dirs; d++) {
+            long dirNumber = nextId++;
+            Inode dir = new Inode("bench", "bench", "d" + d, 0, FileType.DIRECTORY, now, now, now, dirNumber,
+                    new Extent(dirNumber, 1, 0));
+            dir.setParent(root);
+            inodes.add(dir);
+            for (int f = 0; f < filesPerDir && d * filesPerDir + f < files; f++) {
+                Inode file = new Inode("bench", "bench", "f" + f, 1, FileType.FILE, now, now, now, nextId++,
+                        new Extent(nextId, 1, 1));
+                file.setParent(dir);
+                inodes.add(file);
+                dir.setSize(dir.getSize() + 1);
+            }
+            root.setSize(root.getSize() + dir.getSize());
+        }
+
+        long start = System.nanoTime();
+        File checkpoint = MetadataCheckpoint.write(metadataDir, 0, MetadataCheckpoint.encodeChunks(inodes, 0));
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+        long checkpointBytes = checkpoint.length();
+        inodes = null;
+        root = null;
+
+        start = System.nanoTime();
+        FileSystem fs = new FileSystem("bench", "bench");
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        int listed = fs.listDir("/d0", null, FileSystem.LIST_PAGE_SIZE).size();
+        if (listed != Math.min(filesPerDir, FileSystem.LIST_PAGE_SIZE)) {
+            throw new IllegalStateException("Listed " + listed + " entries of /d0");
+        }
+
+        out.printf("%d inodes: checkpoint %.1f B/inode, written in %.2f s, loaded in %.2f s%n",
+                files + dirs + 1, checkpointBytes / (double) (files + dirs + 1), writeSeconds, loadSeconds);
+        System.exit(0);
+    }
+}
@@ -1,10 +1,25 @@
+import components.Frame;
+import components.FrameInputStream;
+import components.FrameOutputStream;
+import components.FrameWriter;
+import components.Inode;
+import components.LogManager;
 import exceptions.InvalidFileTypeException;
+import exceptions.LocationAlreadyExistsException;
 import exceptions.LocationDoesNotExistException;
 import filesystem.*;
+import interfaces.FileType;
 
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
@@ -20,7 +35,16 @@ public class FileSystemServer {
 
     private static final Logger logger = Logger.getLogger(FileSystemServer.class.getName());
 
-    private static final int THREAD_POOL_SIZE = 10;
+    // Pending connections the OS queues before accept(); the kernel may cap it lower.
+    private static final int ACCEPT_BACKLOG = 4096;
+    // Entries sent per "tree" response; the rest is fetched with the page token.
+    private static final int TREE_PAGE_SIZE = 10000;
+    // Per binary connection: threads running its requests, requests other than uploads queued or
+    // running before the connection stops reading, uploads in progress, and chunks buffered per upload.
+    private static final int PIPELINE_WORKERS = 16;
+    private static final int PIPELINE_DEPTH = 256;
+    private static final int MAX_UPLOADS = 8;
+    private static final int UPLOAD_BUFFER_CHUNKS = 16;
 
     static {
         try {
@@ -28,7 +52,8 @@ public class FileSystemServer {
             FileHandler fileHandler = new FileHandler("server.log", true);
             fileHandler.setFormatter(new SimpleFormatter());
             logger.addHandler(fileHandler);
-            logger.setLevel(Level.ALL);
+            // Each request is logged at FINE, so the default INFO keeps the handler off the request path.
+            logger.setLevel(LogManager.getLevel());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -39,14 +64,16 @@ public class FileSystemServer {
     }
 
     public void start() {
-        ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        // One virtual thread per connection: a client idling between commands holds no OS thread,
+        // so the number of connections isn't tied to a thread pool size.
+        ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(PORT, ACCEPT_BACKLOG)) {
             System.out.println("File system server is running...");
             logger.log(Level.INFO, "File system server is running on port " + PORT);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                threadPool.execute(() -> handleClient(clientSocket));
+                connections.execute(() -> handleClient(clientSocket));
             }
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Server exception: " + e.getMessage(), e);
@@ -58,23 +85,18 @@ public class FileSystemServer {
         String clientInfo = clientSocket.getRemoteSocketAddress().toString();
         logger.log(Level.INFO, "Client connected: " + clientInfo);
 
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-            String command;
-            while ((command = in.readLine()) != null) {
-                logger.log(Level.INFO, command);
-                String response;
-                try {
-                    response = processCommand(command);
-                } catch (LocationDoesNotExistException | InvalidFileTypeException e) {
-                    response = "Error: " + e.getMessage();
-                    logger.log(Level.WARNING, response, e);
-                }
-                out.println(response);
+        try (BufferedInputStream in = new BufferedInputStream(clientSocket.getInputStream());
+             BufferedOutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())) {
+            // The first byte tells a binary client from a text one.
+            in.mark(1);
+            if (in.read() == Frame.MAGIC) {
+                serveBinary(new DataInputStream(in), new DataOutputStream(out));
+            } else {
+                in.reset();
+                serveText(in, out);
             }
         } catch (IOException e) {
-            if (e.getMessage().contains("Connection reset")) {
+            if (e.getMessage() != null && e.getMessage().contains("Connection reset")) {
                 logger.log(Level.INFO, "Client disconnected: " + clientInfo);
             } else {
                 logger.log(Level.SEVERE, "IOException occurred: " + e.getMessage(), e);
@@ -90,7 +112,329 @@ public class FileSystemServer {
         }
     }
 
-    private String processCommand(String command) throws LocationDoesNotExistException, InvalidFileTypeException {
+    /** The line-based protocol: one command per line, one line per response (tree excepted). */
+    private void serveText(InputStream rawIn, OutputStream rawOut) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(rawIn));
+        PrintWriter out = new PrintWriter(rawOut, true);
+        String command;
+        while ((command = in.readLine()) != null) {
+            logger.log(Level.FINE, command);
+            if (command.equals("tree") || command.startsWith("tree ")) {
+                streamTree(command.split(" "), out);
+                continue;
+            }
+            String response;
+            try {
+                response = processCommand(command);
+            } catch (LocationDoesNotExistException | InvalidFileTypeException | LocationAlreadyExistsException
+                     | IllegalArgumentException e) {
+                response = "Error: " + e.getMessage();
+                logger.log(Level.WARNING, response, e);
+            }
+            out.println(response);
+        }
+    }
+
+    /**
+     * The framed protocol (see {@link Frame}). Requests are read as fast as the client sends
+     * them and run concurrently on the connection's workers, and each reply goes out as soon as
+     * it is ready, tagged with its request id, so replies may come back in any order. A client
+     * that needs one request to see another's effect waits for the first reply.
+     *
+     * Every request runs in the current directory as of when it was read. "cd" waits for the
+     * requests before it to finish and then changes the connection's directory, so "mkdir a"
+     * followed by "cd a" works without waiting in between. Upload bodies may be interleaved
+     * with other frames; at most MAX_UPLOADS are in progress at once and further ones are
+     * refused, so the reader never waits on an upload that is waiting on the reader. For the
+     * same reason "cd" is refused while an upload body is still arriving.
+     */
+    private void serveBinary(DataInputStream in, DataOutputStream rawOut) throws IOException {
+        FrameWriter out = new FrameWriter(rawOut);
+        ExecutorService workers = Executors.newFixedThreadPool(PIPELINE_WORKERS, Thread.ofVirtual().factory());
+        Semaphore pending = new Semaphore(PIPELINE_DEPTH);
+        Map<Integer, FrameInputStream> uploads = new ConcurrentHashMap<>();
+        try {
+            Frame request;
+            while ((request = Frame.read(in)) != null) {
+                int id = request.getRequestId();
+                Inode cwd = fileSystem.getCurDir();
+                switch (request.getOp()) {
+                    case COMMAND:
+                        String command = request.getText();
+                        logger.log(Level.FINE, command);
+                        if (command.startsWith("cd ")) {
+                            if (!uploads.isEmpty()) {
+                                // Waiting here would stop the DATA frames the uploads still need.
+                                out.write(Frame.Op.ERROR, id, "Cannot change directory while an upload is being received");
+                                break;
+                            }
+                            pending.acquireUninterruptibly(PIPELINE_DEPTH);
+                            pending.release(PIPELINE_DEPTH);
+                            runCommand(id, command, out);
+                            break;
+                        }
+                        pending.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                fileSystem.setCurDir(cwd);
+                                runCommand(id, command, out);
+                            } finally {
+                                pending.release();
+                            }
+                        });
+                        break;
+                    case WRITE:
+                        String fileName = request.getUploadName();
+                        long length = request.getUploadLength();
+                        if (length < 0) {
+                            throw new ProtocolException("Negative upload length");
+                        }
+                        logger.log(Level.FINE, "upload " + fileName + " (" + length + " bytes)");
+                        FrameInputStream body = new FrameInputStream(length, UPLOAD_BUFFER_CHUNKS);
+                        if (length > 0 && uploads.putIfAbsent(id, body) != null) {
+                            throw new ProtocolException("Upload " + id + " is already in progress");
+                        }
+                        if (uploads.size() > MAX_UPLOADS) {
+                            // The body still arrives; it is dropped as it comes in.
+                            body.close();
+                            out.write(Frame.Op.ERROR, id, "Too many uploads in progress");
+                            break;
+                        }
+                        pending.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                fileSystem.setCurDir(cwd);
+                                runUpload(id, fileName, body, length, out);
+                            } finally {
+                                pending.release();
+                            }
+                        });
+                        break;
+                    case DATA:
+                        FrameInputStream upload = uploads.get(id);
+                        if (upload == null) {
+                            throw new ProtocolException("DATA frame for unknown upload " + id);
+                        }
+                        try {
+                            if (upload.add(request.getPayload())) {
+                                uploads.remove(id);
+                            }
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("Interrupted while receiving upload " + id);
+                        }
+                        break;
+                    case BATCH:
+                        List<BatchOperation> operations = parseBatch(request.getPayload());
+                        logger.log(Level.FINE, "batch of " + operations.size());
+                        pending.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                fileSystem.setCurDir(cwd);
+                                runBatch(id, operations, out);
+                            } finally {
+                                pending.release();
+                            }
+                        });
+                        break;
+                    case READ:
+                        String path = request.getText();
+                        pending.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                fileSystem.setCurDir(cwd);
+                                runRead(id, path, 0, -1, out);
+                            } finally {
+                                pending.release();
+                            }
+                        });
+                        break;
+                    case READ_RANGE:
+                        String rangePath = request.getRangeName();
+                        long offset = request.getOffset();
+                        long rangeLength = request.getRangeLength();
+                        if (rangeLength < 0) {
+                            // A negative length means the whole file only to runRead, for READ.
+                            out.write(Frame.Op.ERROR, id, "Negative read length");
+                            break;
+                        }
+                        pending.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                fileSystem.setCurDir(cwd);
+                                runRead(id, rangePath, offset, rangeLength, out);
+                            } finally {
+                                pending.release();
+                            }
+                        });
+                        break;
+                    case WRITE_AT:
+                        String writePath = request.getWriteName();
+                        long writeOffset = request.getOffset();
+                        byte[] writeData = request.getWriteData();
+                        logger.log(Level.FINE, "write " + writePath + " at " + writeOffset + " (" + writeData.length + " bytes)");
+                        pending.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                fileSystem.setCurDir(cwd);
+                                runWriteAt(id, writePath, writeOffset, writeData, out);
+                            } finally {
+                                pending.release();
+                            }
+                        });
+                        break;
+                    default:
+                        throw new ProtocolException("Unexpected " + request.getOp() + " frame");
+                }
+            }
+        } finally {
+            for (FrameInputStream body : uploads.values()) {
+                body.abort();
+            }
+            // Let running requests finish and reply before the socket is closed.
+            workers.close();
+        }
+    }
+
+    private void runCommand(int id, String command, FrameWriter out) {
+        try {
+            try {
+                if (command.equals("tree") || command.startsWith("tree ")) {
+                    Writer listing = new OutputStreamWriter(new FrameOutputStream(out, id), StandardCharsets.UTF_8);
+                    writeTree(command.split(" "), listing);
+                    listing.flush();
+                    out.write(Frame.Op.END, id, new byte[0]);
+                } else {
+                    out.write(Frame.Op.OK, id, processCommand(command));
+                }
+            } catch (LocationDoesNotExistException | InvalidFileTypeException | LocationAlreadyExistsException | RuntimeException e) {
+                logger.log(Level.WARNING, command + " failed", e);
+                out.write(Frame.Op.ERROR, id, String.valueOf(e.getMessage()));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not reply to request " + id, e);
+        }
+    }
+
+    /** Decodes the operations of a BATCH frame; see {@link Frame}. */
+    private static List<BatchOperation> parseBatch(byte[] payload) throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        List<BatchOperation> operations = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                int type = buffer.get();
+                boolean recursive = (buffer.get() & Frame.BATCH_RECURSIVE) != 0;
+                byte[] path = new byte[buffer.getInt()];
+                buffer.get(path);
+                byte[] data = new byte[buffer.getInt()];
+                buffer.get(data);
+                String name = new String(path, StandardCharsets.UTF_8);
+                switch (type) {
+                    case Frame.BATCH_WRITE:
+                        operations.add(BatchOperation.createFile(name, data));
+                        break;
+                    case Frame.BATCH_MKDIR:
+                        operations.add(BatchOperation.mkdir(name, recursive));
+                        break;
+                    case Frame.BATCH_DELETE:
+                        operations.add(BatchOperation.delete(name, recursive));
+                        break;
+                    default:
+                        throw new ProtocolException("Unknown batch operation " + type);
+                }
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new ProtocolException("Truncated batch operation");
+        }
+        return operations;
+    }
+
+    private void runBatch(int id, List<BatchOperation> operations, FrameWriter out) {
+        try {
+            try {
+                if (fileSystem.applyBatch(operations)) {
+                    out.write(Frame.Op.OK, id, operations.size() + " operations applied.");
+                } else {
+                    out.write(Frame.Op.ERROR, id, "Could not apply batch");
+                }
+            } catch (LocationDoesNotExistException | InvalidFileTypeException | LocationAlreadyExistsException | RuntimeException e) {
+                logger.log(Level.WARNING, "batch failed", e);
+                out.write(Frame.Op.ERROR, id, String.valueOf(e.getMessage()));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not reply to request " + id, e);
+        }
+    }
+
+    private void runUpload(int id, String fileName, FrameInputStream body, long length, FrameWriter out) {
+        try {
+            boolean created = false;
+            String error = "Could not store " + fileName;
+            try {
+                created = fileSystem.createFile(fileName, body, length);
+            } catch (LocationDoesNotExistException | InvalidFileTypeException e) {
+                error = e.getMessage();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "upload " + fileName + " failed", e);
+            } finally {
+                body.close();
+            }
+            if (created) {
+                out.write(Frame.Op.OK, id, "File " + fileName + " created.");
+            } else {
+                out.write(Frame.Op.ERROR, id, error);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "upload " + id + " failed", e);
+        }
+    }
+
+    /** Sends the whole file for READ ({@code length} -1), otherwise that many bytes from {@code offset}. */
+    private void runRead(int id, String fileName, long offset, long length, FrameWriter out) {
+        logger.log(Level.FINE, "download " + fileName + (length < 0 ? "" : " from " + offset + " (" + length + " bytes)"));
+        FrameOutputStream download = new FrameOutputStream(out, id);
+        try {
+            try {
+                if (length < 0) {
+                    fileSystem.readFile(fileName, download);
+                } else {
+                    fileSystem.read(fileName, offset, length, download);
+                }
+                download.flush();
+                out.write(Frame.Op.END, id, new byte[0]);
+            } catch (LocationDoesNotExistException | InvalidFileTypeException | RuntimeException e) {
+                out.write(Frame.Op.ERROR, id, String.valueOf(e.getMessage()));
+            } catch (IOException e) {
+                // Part of the file may have been sent; the ERROR tells the client to drop it.
+                logger.log(Level.WARNING, "download failed", e);
+                download.flush();
+                out.write(Frame.Op.ERROR, id, e.getMessage());
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not reply to request " + id, e);
+        }
+    }
+
+    /** Writes at {@code offset}, or appends if it is -1. */
+    private void runWriteAt(int id, String fileName, long offset, byte[] data, FrameWriter out) {
+        try {
+            try {
+                boolean written = offset == -1 ? fileSystem.append(fileName, data) : fileSystem.write(fileName, offset, data);
+                if (written) {
+                    out.write(Frame.Op.OK, id, "Wrote " + data.length + " bytes to " + fileName + ".");
+                } else {
+                    out.write(Frame.Op.ERROR, id, "Could not write " + fileName);
+                }
+            } catch (LocationDoesNotExistException | InvalidFileTypeException | RuntimeException e) {
+                logger.log(Level.WARNING, "write " + fileName + " failed", e);
+                out.write(Frame.Op.ERROR, id, String.valueOf(e.getMessage()));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not reply to request " + id, e);
+        }
+    }
+
+    private String processCommand(String command)
+            throws LocationDoesNotExistException, InvalidFileTypeException, LocationAlreadyExistsException {
         String[] parts = command.split(" ");
         String cmd = parts[0];
 
@@ -99,7 +443,15 @@ public class FileSystemServer {
                 fileSystem.changeDir(parts[1]);
                 return "Changed directory to " + parts[1];
             case "mkdir":
-                fileSystem.createDir(parts[1]);
+                if (parts[1].equals("-p")) {
+                    if (!fileSystem.applyBatch(List.of(BatchOperation.mkdir(parts[2], true)))) {
+                        return "Could not create " + parts[2];
+                    }
+                    return "Directory " + parts[2] + " created.";
+                }
+                if (!fileSystem.createDir(parts[1])) {
+                    return "Could not create " + parts[1];
+                }
                 return "Directory " + parts[1] + " created.";
             case "write":
                 String fileName = parts[1];
@@ -108,13 +460,41 @@ public class FileSystemServer {
                     dataBuilder.append(parts[i]).append(" ");
                 }
                 byte[] data = dataBuilder.toString().getBytes();
-                fileSystem.createFile(fileName, data);
+                if (!fileSystem.createFile(fileName, data)) {
+                    return "Could not store " + fileName;
+                }
                 return "File " + fileName + " created.";
             case "pwd":
                 return fileSystem.getCurDir().getAddress();
-            case "tree":
-                return fileSystem.tree();
+            case "ls":
+                // ls [path] [after]: one page of entries; ask again after the last name for the next page.
+                String dirPath = parts.length > 1 ? parts[1] : ".";
+                List<Inode> page = fileSystem.listDir(dirPath, parts.length > 2 ? parts[2] : null, FileSystem.LIST_PAGE_SIZE);
+                StringBuilder listing = new StringBuilder();
+                for (Inode inode : page) {
+                    if (listing.length() > 0) {
+                        listing.append(' ');
+                    }
+                    listing.append(inode.getName());
+                    if (inode.getFileType() == FileType.DIRECTORY) {
+                        listing.append('/');
+                    }
+                }
+                if (page.size() == FileSystem.LIST_PAGE_SIZE) {
+                    listing.append(" ... (more: ls ").append(dirPath).append(' ')
+                            .append(page.get(page.size() - 1).getName()).append(')');
+                }
+                return listing.toString();
             case "read":
+                if (parts.length > 3) {
+                    // read <file> <offset> <length>: part of the file; a negative offset counts from the end.
+                    try {
+                        byte[] range = fileSystem.read(parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+                        return new String(range, StandardCharsets.UTF_8);
+                    } catch (IOException e) {
+                        return "File " + parts[1] + " could not be read.";
+                    }
+                }
                 byte[] fileData = fileSystem.readFile(parts[1]);
                 if (fileData != null) {
                     // Convert byte array to string (assuming UTF-8 encoding)
@@ -122,7 +502,29 @@ public class FileSystemServer {
                 } else {
                     return "File " + parts[1] + " not found or could not be read.";
                 }
+            case "append":
+                // append <file> <data>: the data is everything after the name, as typed.
+                String[] appendParts = command.split(" ", 3);
+                byte[] appended = (appendParts.length > 2 ? appendParts[2] : "").getBytes(StandardCharsets.UTF_8);
+                if (!fileSystem.append(parts[1], appended)) {
+                    return "Could not write " + parts[1];
+                }
+                return "Wrote " + appended.length + " bytes to " + parts[1] + ".";
+            case "pwrite":
+                // pwrite <file> <offset> <data>
+                String[] writeParts = command.split(" ", 4);
+                byte[] written = (writeParts.length > 3 ? writeParts[3] : "").getBytes(StandardCharsets.UTF_8);
+                if (!fileSystem.write(parts[1], Long.parseLong(parts[2]), written)) {
+                    return "Could not write " + parts[1];
+                }
+                return "Wrote " + written.length + " bytes to " + parts[1] + ".";
             case "rm":
+                if (parts[1].equals("-r")) {
+                    if (!fileSystem.applyBatch(List.of(BatchOperation.delete(parts[2], true)))) {
+                        return "Could not delete " + parts[2];
+                    }
+                    return "Deleted " + parts[2] + ".";
+                }
                 fileSystem.deleteFile(parts[1]);
                 return "Deleted file " + parts[1] + ".";
             default:
@@ -130,6 +532,48 @@ public class FileSystemServer {
         }
     }
 
+    /**
+     * Answers "tree [path] [depth] [token]" over the line protocol. The response always ends
+     * with a line holding only ".".
+     */
+    private void streamTree(String[] parts, PrintWriter out) {
+        try {
+            writeTree(parts, out);
+        } catch (LocationDoesNotExistException | InvalidFileTypeException | NumberFormatException | IOException e) {
+            out.print("Error: " + e.getMessage() + "\n");
+            logger.log(Level.WARNING, "tree failed", e);
+        }
+        out.print(".\n");
+        out.flush();
+    }
+
+    /**
+     * Writes one line per entry, indented by depth, to the buffered writer while the walk goes
+     * on. At most TREE_PAGE_SIZE entries are sent; if the walk isn't done a "next <token>" line
+     * follows, and sending the token back continues from there. Bad arguments are reported
+     * before anything is written.
+     */
+    private void writeTree(String[] parts, Writer out) throws LocationDoesNotExistException, InvalidFileTypeException, IOException {
+        String path = parts.length > 1 ? parts[1] : ".";
+        int maxDepth = parts.length > 2 ? Integer.parseInt(parts[2]) : Integer.MAX_VALUE;
+        TreeWalker walker = fileSystem.walk(path, maxDepth, parts.length > 3 ? parts[3] : null);
+        StringBuilder line = new StringBuilder();
+        for (int sent = 0; sent < TREE_PAGE_SIZE && walker.hasNext(); sent++) {
+            TreeWalker.Entry entry = walker.next();
+            line.setLength(0);
+            for (int i = 0; i < entry.getDepth(); i++) {
+                line.append('\t');
+            }
+            if (entry.getInode().getFileType() == FileType.DIRECTORY) {
+                line.append('/');
+            }
+            out.append(line.append(entry.getInode().getName()).append('\n'));
+        }
+        if (walker.hasNext()) {
+            out.append("next ").append(walker.getPageToken()).append('\n');
+        }
+    }
+
     public static void main(String[] args) {
         FileSystemServer server = new FileSystemServer("user", "group");
         server.start();
@@ -3,24 +3,35 @@ package components;
 import interfaces.FileType;
 
 import java.io.Serializable;
-import java.security.SecureRandom;
 
 public class Block implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    public static int BLOCK_SIZE = 1000;
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
 
     private final FileType blockFileType;
     private final long blockID;
 
-    public static long generateRandomBlockID() {
-        SecureRandom random = new SecureRandom();
-        return random.nextLong();
+    /** Reserves {@code count} consecutive block ids and returns the first. */
+    public static long allocateBlockIds(int count) {
+        return IdAllocator.getBlockIds().allocateRange(count);
+    }
+
+    public static int checkBlockSize(int blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + " bytes");
+        }
+        return blockSize;
     }
 
     public Block(FileType blockFileType) {
+        this(blockFileType, IdAllocator.getBlockIds().next());
+    }
+
+    public Block(FileType blockFileType, long blockID) {
         this.blockFileType = blockFileType;
-        this.blockID = generateRandomBlockID();
+        this.blockID = blockID;
     }
 
     public long getBlockID() {
@@ -0,0 +1,204 @@
+package components;
+
+import org.apache.ratis.protocol.Message;
+import org.apache.ratis.thirdparty.com.google.protobuf.ByteString;
+import org.apache.ratis.thirdparty.com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary message exchanged with the Raft block servers, used for both requests and replies.
+ *
+ * <pre>
+ * | opcode (1) | block id (8) | payload length (4) | CRC32C of payload (4) | payload |
+ * </pre>
+ *
+ * The payload is carried as a ByteString view; encoding and parsing never copy it. A BATCH
+ * message's payload is a sequence of complete STORE and DELETE messages, applied in order as
+ * one Raft log entry.
+ */
+public final class BlockMessage {
+    public static final int HEADER_SIZE = 1 + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    // A batch is one log entry, so it is kept within the entry size the block servers accept for a single block.
+    public static final int BATCH_MAX_BYTES = Block.MAX_BLOCK_SIZE + HEADER_SIZE;
+
+    public enum Op {
+        STORE(1), FETCH(2), DELETE(3), BATCH(4), SUCCESS(64), ERROR(65), INVALID(66);
+
+        private final byte code;
+
+        Op(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        public static Op fromCode(byte code) {
+            for (Op op : values()) {
+                if (op.code == code) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Op op;
+    private final long blockId;
+    private final ByteString payload;
+    private final int checksum;
+
+    private BlockMessage(Op op, long blockId, ByteString payload, int checksum) {
+        this.op = op;
+        this.blockId = blockId;
+        this.payload = payload;
+        this.checksum = checksum;
+    }
+
+    private static BlockMessage of(Op op, long blockId, ByteString payload) {
+        return new BlockMessage(op, blockId, payload, checksum(payload));
+    }
+
+    /**
+     * The data array is wrapped, not copied, so the caller must not modify it afterwards.
+     */
+    public static BlockMessage store(long blockId, byte[] data) {
+        return of(Op.STORE, blockId, UnsafeByteOperations.unsafeWrap(data));
+    }
+
+    public static BlockMessage fetch(long blockId) {
+        return of(Op.FETCH, blockId, ByteString.EMPTY);
+    }
+
+    public static BlockMessage delete(long blockId) {
+        return of(Op.DELETE, blockId, ByteString.EMPTY);
+    }
+
+    /**
+     * Wraps STORE and DELETE messages into one message. The block id is the first message's,
+     * for logging and replies.
+     */
+    public static BlockMessage batch(List<BlockMessage> messages) {
+        ByteString payload = ByteString.EMPTY;
+        for (BlockMessage message : messages) {
+            payload = payload.concat(message.toByteString());
+        }
+        return of(Op.BATCH, messages.isEmpty() ? 0 : messages.get(0).getBlockId(), payload);
+    }
+
+    public static BlockMessage success(long blockId, ByteString payload) {
+        return of(Op.SUCCESS, blockId, payload);
+    }
+
+    public static BlockMessage success(long blockId) {
+        return success(blockId, ByteString.EMPTY);
+    }
+
+    public static BlockMessage error(long blockId) {
+        return of(Op.ERROR, blockId, ByteString.EMPTY);
+    }
+
+    public static BlockMessage invalid() {
+        return of(Op.INVALID, 0, ByteString.EMPTY);
+    }
+
+    /**
+     * Returns null if the bytes are not a well-formed block message.
+     */
+    public static BlockMessage parse(ByteString bytes) {
+        if (bytes.size() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = bytes.substring(0, HEADER_SIZE).asReadOnlyByteBuffer();
+        Op op = Op.fromCode(header.get());
+        long blockId = header.getLong();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (op == null || length < 0 || length != bytes.size() - HEADER_SIZE) {
+            return null;
+        }
+        return new BlockMessage(op, blockId, bytes.substring(HEADER_SIZE), checksum);
+    }
+
+    public static BlockMessage parse(Message message) {
+        return parse(message.getContent());
+    }
+
+    /**
+     * Splits a BATCH message's payload into its messages. Returns null if it is not a sequence
+     * of well-formed messages.
+     */
+    public static List<BlockMessage> parseBatch(ByteString payload) {
+        List<BlockMessage> messages = new ArrayList<>();
+        int position = 0;
+        while (position < payload.size()) {
+            if (payload.size() - position < HEADER_SIZE) {
+                return null;
+            }
+            int length = payload.substring(position + 1 + Long.BYTES, position + 1 + Long.BYTES + Integer.BYTES)
+                    .asReadOnlyByteBuffer().getInt();
+            if (length < 0 || length > payload.size() - position - HEADER_SIZE) {
+                return null;
+            }
+            BlockMessage message = parse(payload.substring(position, position + HEADER_SIZE + length));
+            if (message == null) {
+                return null;
+            }
+            messages.add(message);
+            position += HEADER_SIZE + length;
+        }
+        return messages;
+    }
+
+    /** The size of this message once encoded. */
+    public int getEncodedSize() {
+        return HEADER_SIZE + payload.size();
+    }
+
+    private static int checksum(ByteString payload) {
+        CRC32C crc = new CRC32C();
+        for (ByteBuffer buffer : payload.asReadOnlyByteBufferList()) {
+            crc.update(buffer);
+        }
+        return (int) crc.getValue();
+    }
+
+    public ByteString toByteString() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(op.getCode())
+                .putLong(blockId)
+                .putInt(payload.size())
+                .putInt(checksum)
+                .flip();
+        return UnsafeByteOperations.unsafeWrap(header).concat(payload);
+    }
+
+    public Message toMessage() {
+        return Message.valueOf(toByteString());
+    }
+
+    public boolean isChecksumValid() {
+        return checksum == checksum(payload);
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public long getBlockId() {
+        return blockId;
+    }
+
+    public ByteString getPayload() {
+        return payload;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+}
@@ -2,40 +2,344 @@ package components;
 
 import interfaces.FileType;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * A directory's entries, keyed by the name of each child within the directory.
+ *
+ * Entries are spread over shards by a hash of the name, like an ext4 htree: the shard table is
+ * indexed by the top bits of the hash (extendible hashing), and a shard that grows past
+ * {@link #SHARD_CAPACITY} entries splits in two on the next hash bit without touching the other
+ * shards. Each shard keeps its entries in arrays sorted by (hash, name), so a lookup is a binary
+ * search over a few cache lines and the whole directory has one stable order. Listings walk
+ * that order and resume after a given name, so a page token stays valid while shards split.
+ *
+ * Lookups and listings don't lock. Changes are serialized on the block and swap in a new copy
+ * of the shard's arrays, so readers always see a complete shard.
+ */
 public class DirBlock extends Block {
-    private Map<Long, Inode> blockMap;
+    public static final int SHARD_CAPACITY = 64;
+    // A shard table of at most 2^20 slots; past that, shards grow beyond their capacity.
+    private static final int MAX_DEPTH = 20;
 
-    public DirBlock(Map<Long, Inode> inodes) {
+    /**
+     * An immutable shard: {@code hashes}, {@code names} and {@code inodes} sorted by (unsigned
+     * hash, name). The arrays are never written after construction, so copies may share them.
+     */
+    private static final class Shard {
+        static final Shard EMPTY = new Shard(0, new int[0], new String[0], new Inode[0]);
+
+        // Number of leading hash bits every entry in the shard shares.
+        final int depth;
+        final int[] hashes;
+        final String[] names;
+        final Inode[] inodes;
+
+        Shard(int depth, int[] hashes, String[] names, Inode[] inodes) {
+            this.depth = depth;
+            this.hashes = hashes;
+            this.names = names;
+            this.inodes = inodes;
+        }
+
+        /** Returns the entry's index, or -(insertion point) - 1 if it is missing. */
+        int find(int hash, CharSequence name) {
+            int low = 0;
+            int high = hashes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (Integer.compareUnsigned(hashes[mid], hash) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (; low < hashes.length && hashes[low] == hash; low++) {
+                int byName = CharSequence.compare(names[low], name);
+                if (byName == 0) {
+                    return low;
+                }
+                if (byName > 0) {
+                    break;
+                }
+            }
+            return -low - 1;
+        }
+
+        Shard with(int index, int hash, String name, Inode inode) {
+            int n = hashes.length;
+            int[] newHashes = new int[n + 1];
+            String[] newNames = new String[n + 1];
+            Inode[] newInodes = new Inode[n + 1];
+            System.arraycopy(hashes, 0, newHashes, 0, index);
+            System.arraycopy(names, 0, newNames, 0, index);
+            System.arraycopy(inodes, 0, newInodes, 0, index);
+            newHashes[index] = hash;
+            newNames[index] = name;
+            newInodes[index] = inode;
+            System.arraycopy(hashes, index, newHashes, index + 1, n - index);
+            System.arraycopy(names, index, newNames, index + 1, n - index);
+            System.arraycopy(inodes, index, newInodes, index + 1, n - index);
+            return new Shard(depth, newHashes, newNames, newInodes);
+        }
+
+        Shard replacing(int index, Inode inode) {
+            Inode[] newInodes = inodes.clone();
+            newInodes[index] = inode;
+            return new Shard(depth, hashes, names, newInodes);
+        }
+
+        Shard without(int index) {
+            int n = hashes.length;
+            int[] newHashes = new int[n - 1];
+            String[] newNames = new String[n - 1];
+            Inode[] newInodes = new Inode[n - 1];
+            System.arraycopy(hashes, 0, newHashes, 0, index);
+            System.arraycopy(names, 0, newNames, 0, index);
+            System.arraycopy(inodes, 0, newInodes, 0, index);
+            System.arraycopy(hashes, index + 1, newHashes, index, n - index - 1);
+            System.arraycopy(names, index + 1, newNames, index, n - index - 1);
+            System.arraycopy(inodes, index + 1, newInodes, index, n - index - 1);
+            return new Shard(depth, newHashes, newNames, newInodes);
+        }
+
+        Shard range(int depth, int from, int to) {
+            return new Shard(depth, Arrays.copyOfRange(hashes, from, to),
+                    Arrays.copyOfRange(names, from, to), Arrays.copyOfRange(inodes, from, to));
+        }
+    }
+
+    // Indexed by the top log2(length) bits of the hash; a shard of depth d fills 2^(log2(length) - d) slots.
+    // Slots are replaced in place; the table itself only when it doubles.
+    private volatile AtomicReferenceArray<Shard> shards = new AtomicReferenceArray<>(new Shard[] {Shard.EMPTY});
+    private volatile int size;
+
+    public DirBlock(Map<String, Inode> entries) {
         super(FileType.DIRECTORY);
-        this.blockMap = new HashMap<Long, Inode>(inodes.size());
+        for (Inode inode : entries.values()) {
+            addEntry(inode);
+        }
     }
 
     public DirBlock() {
         super(FileType.DIRECTORY);
-        this.blockMap = new HashMap<Long, Inode>();
     }
 
-    public Map<Long, Inode> getInodeMap() {
-        return blockMap;
+    public DirBlock(long blockID) {
+        super(FileType.DIRECTORY, blockID);
     }
 
-    public void setInodeMap(Map<Long, Inode> blockMap) {
-        this.blockMap = blockMap;
+    /** Fibonacci hashing, so the top bits that pick a shard are well mixed. */
+    private static int hashOf(CharSequence name) {
+        return name.hashCode() * 0x9E3779B9;
     }
 
-    public void addInode(Inode inode) {
-        blockMap.put(inode.getInodeNumber(), inode);
+    private static int depthOf(AtomicReferenceArray<Shard> table) {
+        return Integer.numberOfTrailingZeros(table.length());
     }
 
-    public void removeInode(long blockNumber) {
-        blockMap.remove(blockNumber);
+    private static int indexOf(int hash, AtomicReferenceArray<Shard> table) {
+        return table.length() == 1 ? 0 : hash >>> (32 - depthOf(table));
     }
 
-    public void updateBlock(Block block, Inode inode) {
-        this.removeInode(inode.getInodeNumber());
-        this.addInode(inode);
+    public Inode lookup(String name) {
+        return lookup((CharSequence) name);
+    }
+
+    /** Looks up the child named by the view without allocating. */
+    public Inode lookup(NameView name) {
+        return lookup((CharSequence) name);
+    }
+
+    private Inode lookup(CharSequence name) {
+        int hash = hashOf(name);
+        AtomicReferenceArray<Shard> table = shards;
+        Shard shard = table.get(indexOf(hash, table));
+        int index = shard.find(hash, name);
+        return index < 0 ? null : shard.inodes[index];
+    }
+
+    /** Adds the inode under its name and returns the entry it replaced, if any. */
+    public synchronized Inode addEntry(Inode inode) {
+        String name = inode.getName();
+        int hash = hashOf(name);
+        AtomicReferenceArray<Shard> table = shards;
+        Shard shard = table.get(indexOf(hash, table));
+        int index = shard.find(hash, name);
+        if (index >= 0) {
+            Inode replaced = shard.inodes[index];
+            Shard updated = shard.replacing(index, inode);
+            publish(table, shard, updated, updated, hash);
+            return replaced;
+        }
+        Shard grown = shard.with(-index - 1, hash, name, inode);
+        if (grown.hashes.length > SHARD_CAPACITY && grown.depth < MAX_DEPTH) {
+            // Every entry shares the shard's leading hash bits, so in (hash, name) order the
+            // entries whose next bit is 0 come first and the split is a single cut.
+            int bit = 1 << (31 - grown.depth);
+            int cut = 0;
+            while (cut < grown.hashes.length && (grown.hashes[cut] & bit) == 0) {
+                cut++;
+            }
+            publish(table, shard, grown.range(grown.depth + 1, 0, cut),
+                    grown.range(grown.depth + 1, cut, grown.hashes.length), hash);
+        } else {
+            publish(table, shard, grown, grown, hash);
+        }
+        size++;
+        return null;
+    }
+
+    /** Removes the inode's entry, unless its name now refers to another inode. */
+    public synchronized boolean removeEntry(Inode inode) {
+        String name = inode.getName();
+        int hash = hashOf(name);
+        AtomicReferenceArray<Shard> table = shards;
+        Shard shard = table.get(indexOf(hash, table));
+        int index = shard.find(hash, name);
+        if (index < 0 || shard.inodes[index] != inode) {
+            return false;
+        }
+        Shard shrunk = shard.without(index);
+        publish(table, shard, shrunk, shrunk, hash);
+        size--;
+        return true;
+    }
+
+    /**
+     * Points the old shard's run of slots at {@code low} (first half) and {@code high} (second
+     * half). When a split makes the two deeper than the table, a doubled table is filled in and
+     * published instead.
+     */
+    private void publish(AtomicReferenceArray<Shard> table, Shard old, Shard low, Shard high, int hash) {
+        int globalDepth = depthOf(table);
+        AtomicReferenceArray<Shard> target = table;
+        if (low != high && low.depth > globalDepth) {
+            target = new AtomicReferenceArray<>(table.length() * 2);
+            for (int i = 0; i < table.length(); i++) {
+                target.set(2 * i, table.get(i));
+                target.set(2 * i + 1, table.get(i));
+            }
+            globalDepth++;
+        }
+        int span = 1 << (globalDepth - old.depth);
+        int first = indexOf(hash, target) & ~(span - 1);
+        for (int i = 0; i < span; i++) {
+            target.set(first + i, i < span / 2 ? low : high);
+        }
+        if (target != table) {
+            shards = target;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getShardCount() {
+        AtomicReferenceArray<Shard> table = shards;
+        int count = 0;
+        for (int i = 0; i < table.length(); i += 1 << (depthOf(table) - table.get(i).depth)) {
+            count++;
+        }
+        return count;
+    }
+
+    /** Iterates over every entry in directory order. */
+    public Iterator<Inode> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * Iterates over the entries that come after {@code afterName} in directory order, or over
+     * all of them if it is null. The name doesn't have to exist any more. The iterator is weakly
+     * consistent: it never fails, but may miss changes made while it runs.
+     */
+    public Iterator<Inode> iterator(String afterName) {
+        return new EntryIterator(shards, afterName);
+    }
+
+    /**
+     * Like {@link #iterator(String)}, but over a copy of the shard table taken between changes,
+     * so it returns exactly the entries the directory held at the time of the call.
+     */
+    public Iterator<Inode> snapshot(String afterName) {
+        AtomicReferenceArray<Shard> copy;
+        synchronized (this) {
+            AtomicReferenceArray<Shard> table = shards;
+            copy = new AtomicReferenceArray<>(table.length());
+            for (int i = 0; i < table.length(); i++) {
+                copy.lazySet(i, table.get(i));
+            }
+        }
+        return new EntryIterator(copy, afterName);
+    }
+
+    /** Returns up to {@code limit} entries after {@code afterName}, for paged listings. */
+    public List<Inode> list(String afterName, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Inode> page = new ArrayList<>(Math.min(limit, size));
+        Iterator<Inode> entries = iterator(afterName);
+        while (page.size() < limit && entries.hasNext()) {
+            page.add(entries.next());
+        }
+        return page;
+    }
+
+    private static final class EntryIterator implements Iterator<Inode> {
+        private final AtomicReferenceArray<Shard> table;
+        private final int globalDepth;
+        private int slot;
+        private Shard shard;
+        private int index;
+
+        EntryIterator(AtomicReferenceArray<Shard> table, String afterName) {
+            this.table = table;
+            this.globalDepth = depthOf(table);
+            if (afterName == null) {
+                this.slot = 0;
+                this.shard = table.get(0);
+                this.index = 0;
+            } else {
+                int hash = hashOf(afterName);
+                this.slot = indexOf(hash, table);
+                this.shard = table.get(slot);
+                int found = shard.find(hash, afterName);
+                this.index = found >= 0 ? found + 1 : -found - 1;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index >= shard.inodes.length) {
+                // Skip the rest of the current shard's run of slots.
+                int span = 1 << (globalDepth - shard.depth);
+                int next = (slot & ~(span - 1)) + span;
+                if (next >= table.length()) {
+                    return false;
+                }
+                slot = next;
+                shard = table.get(slot);
+                index = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Inode next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return shard.inodes[index++];
+        }
     }
 }
@@ -0,0 +1,46 @@
+package components;
+
+import java.io.Serializable;
+
+/**
+ * A run of {@code blockCount} blocks with consecutive ids starting at {@code startBlockId},
+ * holding {@code length} bytes. Every block but the last is a full block of the inode's block
+ * size, so the block holding any byte of the extent is found by arithmetic.
+ */
+public final class Extent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long startBlockId;
+    private final int blockCount;
+    private final long length;
+
+    public Extent(long startBlockId, int blockCount, long length) {
+        if (blockCount < 0 || length < 0) {
+            throw new IllegalArgumentException("Extent block count and length must not be negative");
+        }
+        this.startBlockId = startBlockId;
+        this.blockCount = blockCount;
+        this.length = length;
+    }
+
+    public long getStartBlockId() {
+        return startBlockId;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getBlockId(int index) {
+        return startBlockId + index;
+    }
+
+    /** Returns the number of bytes held by the block at {@code index} in this extent. */
+    public int getBlockLength(int index, int blockSize) {
+        return (int) Math.min(blockSize, length - (long) index * blockSize);
+    }
+}
@@ -1,20 +1,17 @@
 package components;
 
-import org.apache.ratis.client.RaftClient;
-import org.apache.ratis.conf.RaftProperties;
 import org.apache.ratis.protocol.*;
 
 import interfaces.FileType;
 import io.github.cdimascio.dotenv.Dotenv;
-import org.apache.ratis.protocol.RaftGroup;
 import org.apache.ratis.protocol.exceptions.RaftException;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -23,13 +20,7 @@ public class FileBlock extends Block {
     private int size;
     private static final List<String> SERVERS;
 
-    public static final List<String> PEER_ADDR = Arrays.asList(
-            "localhost:8081",
-            "localhost:8082",
-            "localhost:8083"
-    );
-
-    private static RaftGroup raftGroup;
+    private static final RaftClientManager clientManager = RaftClientManager.getInstance();
 
     static {
         Dotenv dotenv = Dotenv.load();
@@ -37,13 +28,6 @@ public class FileBlock extends Block {
         SERVERS = Arrays.stream(hosts.split(","))
                 .map(String::trim)
                 .collect(Collectors.toList());
-
-        RaftGroupId raftGroupId = RaftGroupId.valueOf(UUID.fromString("12345678-1234-1234-1234-123456789012"));
-        List<RaftPeer> peers = PEER_ADDR.stream()
-                .map(addr -> RaftPeer.newBuilder().setId(RaftPeerId.valueOf("n" + addr)).setAddress(addr).build())
-                .collect(Collectors.toList());
-        raftGroup = RaftGroup.valueOf(raftGroupId, peers);
-
     }
 
     public FileBlock(byte[] data, int size) {
@@ -52,6 +36,22 @@ public class FileBlock extends Block {
         saveDataToServers(data);
     }
 
+    /**
+     * Creates a block whose data is not stored yet; call {@link #saveDataAsync(byte[])} to upload it.
+     */
+    public FileBlock(int size) {
+        super(FileType.FILE);
+        this.size = size;
+    }
+
+    /**
+     * Refers to the stored block with the given id, e.g. one described by an inode's extent.
+     */
+    public FileBlock(long blockID, int size) {
+        super(FileType.FILE, blockID);
+        this.size = size;
+    }
+
     private void saveDataToServers(byte[] data) {
         System.out.println("Storing data");
         boolean resp = saveDataToServer(data);
@@ -63,16 +63,10 @@ public class FileBlock extends Block {
     }
 
     private boolean saveDataToServer(byte[] data) {
-        RaftProperties raftProperties = new RaftProperties();
-        try (RaftClient client = RaftClient.newBuilder()
-                .setProperties(raftProperties)
-                .setRaftGroup(raftGroup)
-                .build()) {
+        try {
+            RaftClientReply reply = clientManager.send(BlockMessage.store(super.getBlockID(), data).toMessage());
 
-            String command = "store," + super.getBlockID() + "," + data.length + "," + new String(data);
-            RaftClientReply reply = client.io().send(Message.valueOf(command));
-
-            return "SUCCESS".equals(reply.getMessage().getContent().toStringUtf8());
+            return isSuccess(reply);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -80,21 +74,132 @@ public class FileBlock extends Block {
         }
     }
 
+    private static boolean isSuccess(RaftClientReply reply) {
+        BlockMessage response = BlockMessage.parse(reply.getMessage());
+        return response != null && response.getOp() == BlockMessage.Op.SUCCESS;
+    }
+
+    private byte[] toBlockData(RaftClientReply reply) {
+        BlockMessage response = BlockMessage.parse(reply.getMessage());
+        if (response == null || response.getOp() != BlockMessage.Op.SUCCESS) {
+            return null;
+        }
+        if (!response.isChecksumValid()) {
+            System.out.println("Checksum mismatch for block " + super.getBlockID());
+            return null;
+        }
+        return response.getPayload().toByteArray();
+    }
+
+    public CompletableFuture<Boolean> saveDataAsync(byte[] data) {
+        try {
+            return clientManager.sendAsync(BlockMessage.store(super.getBlockID(), data).toMessage())
+                    .thenApply(FileBlock::isSuccess)
+                    .exceptionally(e -> {
+                        e.printStackTrace();
+                        return false;
+                    });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Removes the block's data from the block servers. Completes with false if the delete failed.
+     */
+    public CompletableFuture<Boolean> deleteDataAsync() {
+        try {
+            return clientManager.sendAsync(BlockMessage.delete(super.getBlockID()).toMessage())
+                    .thenApply(FileBlock::isSuccess)
+                    .exceptionally(e -> {
+                        e.printStackTrace();
+                        return false;
+                    });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Sends STORE and DELETE messages packed into as few BATCH submissions as fit within
+     * {@link BlockMessage#BATCH_MAX_BYTES}, so many small blocks cost a few Raft round trips
+     * instead of one each. Returns one future per submission, in order.
+     */
+    public static List<CompletableFuture<Boolean>> submitAll(List<BlockMessage> messages) {
+        List<CompletableFuture<Boolean>> submissions = new ArrayList<>();
+        List<BlockMessage> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for (BlockMessage message : messages) {
+            if (!batch.isEmpty() && batchBytes + message.getEncodedSize() > BlockMessage.BATCH_MAX_BYTES) {
+                submissions.add(submit(batch));
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(message);
+            batchBytes += message.getEncodedSize();
+        }
+        if (!batch.isEmpty()) {
+            submissions.add(submit(batch));
+        }
+        return submissions;
+    }
+
+    private static CompletableFuture<Boolean> submit(List<BlockMessage> batch) {
+        BlockMessage message = batch.size() == 1 ? batch.get(0) : BlockMessage.batch(batch);
+        try {
+            return clientManager.sendAsync(message.toMessage())
+                    .thenApply(FileBlock::isSuccess)
+                    .exceptionally(e -> {
+                        e.printStackTrace();
+                        return false;
+                    });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
     public byte[] getData() {
-        RaftProperties raftProperties = new RaftProperties();
-        try (RaftClient client = RaftClient.newBuilder()
-                .setProperties(raftProperties)
-                .setRaftGroup(raftGroup)
-                .build()) {
+        return getDataAsync().join();
+    }
 
-            String command = "fetch," + super.getBlockID() + ",0,0";
-            RaftClientReply reply = client.io().send(Message.valueOf(command));
+    /**
+     * Completes with null if the block could not be fetched. When stale reads are enabled the
+     * block is first read from any replica, falling back to the leader if that replica is
+     * behind the writes acknowledged so far or doesn't have the block.
+     */
+    public CompletableFuture<byte[]> getDataAsync() {
+        if (!clientManager.isStaleReadEnabled()) {
+            return fetchAsync(false);
+        }
+        return fetchAsync(true).thenComposeAsync(data ->
+                data != null ? CompletableFuture.completedFuture(data) : fetchAsync(false));
+    }
 
-            return reply.getMessage().getContent().toByteArray();
+    /**
+     * Fetches the block through the leader even when stale reads are enabled, for a
+     * read-modify-write that must see every committed store. Returns null if it can't be fetched.
+     */
+    public byte[] getCommittedData() {
+        return fetchAsync(false).join();
+    }
 
+    private CompletableFuture<byte[]> fetchAsync(boolean stale) {
+        try {
+            return clientManager.sendReadOnlyAsync(BlockMessage.fetch(super.getBlockID()).toMessage(), stale)
+                    .thenApply(this::toBlockData)
+                    .exceptionally(e -> {
+                        // A replica that is behind refuses a stale read, which then goes to the leader.
+                        if (!stale) {
+                            e.printStackTrace();
+                        }
+                        return null;
+                    });
         } catch (IOException e) {
             e.printStackTrace();
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
     }
 
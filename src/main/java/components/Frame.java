@@ -0,0 +1,192 @@
+package components;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Frame of the binary client protocol, used for both requests and replies.
+ *
+ * <pre>
+ * | opcode (1) | request id (4) | payload length (4) | payload |
+ * </pre>
+ *
+ * A binary client sends {@link #MAGIC} once after connecting; a connection that starts with any
+ * other byte speaks the line-based text protocol. Every reply carries the id of its request.
+ * File bodies travel as DATA frames of at most {@link #CHUNK_SIZE} bytes: an upload is a WRITE
+ * frame holding the length and name followed by that many bytes of DATA, and a download is
+ * DATA frames ended by an END frame. A BATCH frame holds namespace changes applied together,
+ * each encoded as
+ *
+ * <pre>
+ * | type (1) | flags (1) | path length (4) | path | data length (4) | data |
+ * </pre>
+ *
+ * where type is one of the BATCH_ constants and flag bit 0 asks for "mkdir -p" or "rm -r".
+ *
+ * READ_RANGE asks for part of a file and is answered like READ; its payload is
+ * {@code | offset (8) | length (8) | name |}, where a negative offset counts from the end.
+ * WRITE_AT writes into a file without replacing it; its payload is
+ * {@code | offset (8) | name length (4) | name | data |}, where offset -1 appends.
+ */
+public final class Frame {
+    /** Sent first by binary clients. No text command starts with this byte. */
+    public static final int MAGIC = 0xD5;
+    public static final int HEADER_SIZE = 1 + Integer.BYTES + Integer.BYTES;
+    public static final int CHUNK_SIZE = 64 * 1024;
+    // Larger frames are a protocol error; file bodies are chunked well below this.
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+    public static final int BATCH_WRITE = 1;
+    public static final int BATCH_MKDIR = 2;
+    public static final int BATCH_DELETE = 3;
+    public static final int BATCH_RECURSIVE = 1;
+
+    public enum Op {
+        COMMAND(1), WRITE(2), READ(3), DATA(4), BATCH(5), READ_RANGE(6), WRITE_AT(7), OK(64), END(65), ERROR(66);
+
+        private final byte code;
+
+        Op(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        public static Op fromCode(byte code) {
+            for (Op op : values()) {
+                if (op.code == code) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Op op;
+    private final int requestId;
+    private final byte[] payload;
+
+    private Frame(Op op, int requestId, byte[] payload) {
+        this.op = op;
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    /**
+     * Reads the next frame, or returns null if the stream ends cleanly before one starts.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int code = in.read();
+        if (code < 0) {
+            return null;
+        }
+        Op op = Op.fromCode((byte) code);
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (op == null) {
+            throw new ProtocolException("Unknown opcode " + code);
+        }
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(op, requestId, payload);
+    }
+
+    public static void write(DataOutputStream out, Op op, int requestId, byte[] payload, int offset, int length) throws IOException {
+        out.writeByte(op.getCode());
+        out.writeInt(requestId);
+        out.writeInt(length);
+        out.write(payload, offset, length);
+    }
+
+    public static void write(DataOutputStream out, Op op, int requestId, byte[] payload) throws IOException {
+        write(out, op, requestId, payload, 0, payload.length);
+    }
+
+    public static void write(DataOutputStream out, Op op, int requestId, String text) throws IOException {
+        write(out, op, requestId, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /** The length an upload announces: the first 8 bytes of a WRITE payload. */
+    public long getUploadLength() throws ProtocolException {
+        return getLong(0);
+    }
+
+    /** The offset of a READ_RANGE or WRITE_AT frame. */
+    public long getOffset() throws ProtocolException {
+        return getLong(0);
+    }
+
+    /** The length a READ_RANGE frame asks for. */
+    public long getRangeLength() throws ProtocolException {
+        return getLong(Long.BYTES);
+    }
+
+    /** The file name of a READ_RANGE frame. */
+    public String getRangeName() {
+        int start = Math.min(2 * Long.BYTES, payload.length);
+        return new String(payload, start, payload.length - start, StandardCharsets.UTF_8);
+    }
+
+    /** The file name of a WRITE_AT frame. */
+    public String getWriteName() throws ProtocolException {
+        return new String(payload, Long.BYTES + Integer.BYTES, getWriteNameLength(), StandardCharsets.UTF_8);
+    }
+
+    /** The data of a WRITE_AT frame, after the name. */
+    public byte[] getWriteData() throws ProtocolException {
+        return Arrays.copyOfRange(payload, Long.BYTES + Integer.BYTES + getWriteNameLength(), payload.length);
+    }
+
+    private int getWriteNameLength() throws ProtocolException {
+        int length = (int) getBigEndian(Long.BYTES, Integer.BYTES);
+        if (length < 0 || length > payload.length - Long.BYTES - Integer.BYTES) {
+            throw new ProtocolException("Invalid name length " + length);
+        }
+        return length;
+    }
+
+    private long getLong(int index) throws ProtocolException {
+        return getBigEndian(index, Long.BYTES);
+    }
+
+    private long getBigEndian(int index, int size) throws ProtocolException {
+        if (payload.length < index + size) {
+            throw new ProtocolException(op + " frame is too short");
+        }
+        long value = 0;
+        for (int i = index; i < index + size; i++) {
+            value = (value << 8) | (payload[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /** The file name of a WRITE frame, after the length. */
+    public String getUploadName() {
+        int start = Math.min(Long.BYTES, payload.length);
+        return new String(payload, start, payload.length - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,130 @@
+package components;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The body of an upload: exactly {@code length} bytes carried by the DATA frames that follow a
+ * WRITE request, possibly interleaved with frames of other requests. The connection's reader
+ * hands each chunk over with {@link #add(byte[])} and the request's task reads the stream. At
+ * most {@code capacity} chunks wait to be read, so a slow upload holds back the connection
+ * rather than piling up in memory.
+ */
+public class FrameInputStream extends InputStream {
+    private final long length;
+    private final int capacity;
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long received;
+    // Set by the reader when the connection ends before the body does.
+    private boolean aborted;
+    // Set by the task once it won't read any more; later chunks are dropped.
+    private boolean closed;
+
+    private byte[] chunk = new byte[0];
+    private int position;
+    private long consumed;
+
+    public FrameInputStream(long length, int capacity) {
+        this.length = length;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Hands over the next chunk, waiting while the queue is full. Returns true once the whole
+     * body has been received.
+     */
+    public boolean add(byte[] data) throws ProtocolException, InterruptedException {
+        lock.lock();
+        try {
+            if (data.length > length - received) {
+                throw new ProtocolException("Upload is " + (received + data.length - length) + " bytes longer than announced");
+            }
+            received += data.length;
+            while (!closed && chunks.size() >= capacity) {
+                changed.await();
+            }
+            if (!closed) {
+                chunks.add(data);
+                changed.signalAll();
+            }
+            return received == length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Fails the reads still waiting for data, because the connection has ended. */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns false once the whole body has been read. */
+    private boolean fill() throws IOException {
+        while (position == chunk.length) {
+            if (consumed == length) {
+                return false;
+            }
+            lock.lock();
+            try {
+                while (chunks.isEmpty()) {
+                    if (aborted) {
+                        throw new EOFException("Connection closed during upload");
+                    }
+                    changed.awaitUninterruptibly();
+                }
+                chunk = chunks.poll();
+                position = 0;
+                consumed += chunk.length;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? chunk[position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, chunk.length - position);
+        System.arraycopy(chunk, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    /** Drops whatever is queued or still to come, so the reader never waits on this body again. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            chunks.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
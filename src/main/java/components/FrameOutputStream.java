@@ -0,0 +1,55 @@
+package components;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a download as DATA frames of up to {@link Frame#CHUNK_SIZE} bytes for one request. The
+ * END frame is left to the caller, which may send an ERROR instead if the body fails part way.
+ */
+public class FrameOutputStream extends OutputStream {
+    private final FrameWriter out;
+    private final int requestId;
+    private final byte[] chunk = new byte[Frame.CHUNK_SIZE];
+    private int count;
+
+    public FrameOutputStream(FrameWriter out, int requestId) {
+        this.out = out;
+        this.requestId = requestId;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunk.length) {
+            flushChunk();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == chunk.length) {
+                flushChunk();
+            }
+            int n = Math.min(length, chunk.length - count);
+            System.arraycopy(data, offset, chunk, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (count > 0) {
+            out.write(Frame.Op.DATA, requestId, chunk, 0, count);
+            count = 0;
+        }
+    }
+
+    /** Sends the buffered bytes as a DATA frame. */
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+    }
+}
@@ -0,0 +1,40 @@
+package components;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes frames to a connection from many threads at once. Each frame is written whole, so
+ * replies to concurrent requests interleave only at frame boundaries. The connection is flushed
+ * by the last writer in line, so a burst of small replies goes out in few packets.
+ */
+public class FrameWriter {
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public FrameWriter(DataOutputStream out) {
+        this.out = out;
+    }
+
+    public void write(Frame.Op op, int requestId, byte[] payload, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            Frame.write(out, op, requestId, payload, offset, length);
+            if (!lock.hasQueuedThreads()) {
+                out.flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void write(Frame.Op op, int requestId, byte[] payload) throws IOException {
+        write(op, requestId, payload, 0, payload.length);
+    }
+
+    public void write(Frame.Op op, int requestId, String text) throws IOException {
+        write(op, requestId, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
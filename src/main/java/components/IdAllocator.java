@@ -0,0 +1,170 @@
+package components;
+
+import io.github.cdimascio.dotenv.Dotenv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out unique, mostly sequential ids. Threads are spread by id over a fixed set of
+ * stripes, each holding a range of ids taken from a shared counter, so concurrent callers
+ * rarely wait on the same lock. The stripes outlive the threads, which matters with a virtual
+ * thread per request: a range is used up by whoever hashes to it rather than dropped with a
+ * short-lived thread. The counter's high-water mark is written to disk before any id below it
+ * is handed out, so after a restart allocation resumes above every id that may have been used.
+ * Ids left unused in a range are skipped, never reused.
+ */
+public class IdAllocator {
+    private static final int DEFAULT_RANGE_SIZE = 1024;
+    private static final int PERSIST_BATCH_RANGES = 64;
+
+    private static final IdAllocator BLOCK_IDS;
+    private static final IdAllocator INODE_IDS;
+
+    static {
+        Dotenv dotenv = Dotenv.load();
+        File dir = new File(dotenv.get("METADATA_DIR", "metadata"));
+        int rangeSize = Integer.parseInt(dotenv.get("ID_RANGE_SIZE", String.valueOf(DEFAULT_RANGE_SIZE)));
+
+        try {
+            BLOCK_IDS = new IdAllocator(new File(dir, "block-ids"), 1, rangeSize);
+            // Inode 0 is the root directory.
+            INODE_IDS = new IdAllocator(new File(dir, "inode-ids"), 1, rangeSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load id allocator state from " + dir, e);
+        }
+    }
+
+    public static IdAllocator getBlockIds() {
+        return BLOCK_IDS;
+    }
+
+    public static IdAllocator getInodeIds() {
+        return INODE_IDS;
+    }
+
+    private final File highWaterFile;
+    private final int rangeSize;
+    private final Stripe[] stripes;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long next;
+    private long highWater;
+
+    public IdAllocator(File highWaterFile, long firstId, int rangeSize) throws IOException {
+        if (rangeSize <= 0) {
+            throw new IllegalArgumentException("Range size must be positive");
+        }
+        this.highWaterFile = highWaterFile;
+        this.rangeSize = rangeSize;
+
+        long persisted = firstId;
+        if (highWaterFile.exists()) {
+            persisted = Long.parseLong(new String(Files.readAllBytes(highWaterFile.toPath()), StandardCharsets.UTF_8).trim());
+        }
+        this.next = Math.max(firstId, persisted);
+        this.highWater = next;
+
+        // A power of two at least twice the core count, so a hash picks a stripe with a mask.
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** A range of ids as [next, end), shared by the threads that hash to it. */
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        long next;
+        long end;
+    }
+
+    private Stripe stripe() {
+        long h = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+    }
+
+    public long next() {
+        Stripe stripe = stripe();
+        stripe.lock.lock();
+        try {
+            if (stripe.next == stripe.end) {
+                stripe.next = reserve(rangeSize);
+                stripe.end = stripe.next + rangeSize;
+            }
+            return stripe.next++;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /** Returns the first of {@code count} consecutive ids. */
+    public long allocateRange(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative");
+        }
+        Stripe stripe = stripe();
+        stripe.lock.lock();
+        try {
+            if (stripe.end - stripe.next >= count) {
+                long start = stripe.next;
+                stripe.next += count;
+                return start;
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        return reserve(count);
+    }
+
+    private long reserve(int count) {
+        lock.lock();
+        try {
+            if (next + count > highWater) {
+                long newHighWater = next + Math.max(count, (long) rangeSize * PERSIST_BATCH_RANGES);
+                try {
+                    persist(newHighWater);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not persist id high-water mark", e);
+                }
+                highWater = newHighWater;
+            }
+            long start = next;
+            next += count;
+            return start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void persist(long value) throws IOException {
+        File dir = highWaterFile.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = new File(dir, highWaterFile.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap((value + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), highWaterFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public long getHighWater() {
+        lock.lock();
+        try {
+            return highWater;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
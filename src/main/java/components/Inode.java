@@ -3,17 +3,20 @@ package components;
 import interfaces.FileType;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
 
 public class Inode implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private String owner;
     private String group;
-    private String address;
+    // The name within the parent directory; the root's name is empty.
+    private String name;
+    // Set when the inode is linked into a directory, null for the root and unlinked inodes.
+    private transient Inode parent;
     private long size;
+    private int blockSize;
     private FileType fileType;
 
     private Date create;
@@ -21,27 +24,100 @@ public class Inode implements Serializable {
     private Date modify;
 
     private long inodeNumber;
-    private List<Long> blockIds;
-
-    public Inode(String owner, String group, String address, long size, FileType fileType, Date create, Date access, Date modify, long inodeNumber, List<Long> blockIds) {
+    // The file's blocks in file order. A directory has a single extent holding its DirBlock.
+    private volatile Extent[] extents;
+    // The extents with the byte offset at which each starts, rebuilt when the extents change.
+    private transient volatile ExtentMap extentMap;
+    // Block ids from the end of the last extent up to here are reserved for the file to grow
+    // into, so appends extend that extent. Not persisted; a restarted server reserves afresh.
+    private transient long reservedBlockIdEnd;
+
+    /** An extents array and its start offsets, always read together. */
+    private static final class ExtentMap {
+        final Extent[] extents;
+        final long[] offsets;
+
+        ExtentMap(Extent[] extents) {
+            this.extents = extents;
+            this.offsets = new long[extents.length];
+            long offset = 0;
+            for (int i = 0; i < extents.length; i++) {
+                offsets[i] = offset;
+                offset += extents[i].getLength();
+            }
+        }
+    }
+
+    public Inode(String owner, String group, String name, long size, FileType fileType, Date create, Date access, Date modify, long inodeNumber, Extent... extents) {
         this.owner = owner;
         this.group = group;
-        this.address = address;
+        this.name = name;
         this.size = size;
         this.fileType = fileType;
         this.create = create;
         this.access = access;
         this.modify = modify;
         this.inodeNumber = inodeNumber;
-        this.blockIds = new ArrayList<>(blockIds);
-    }
-
-    public List<Long> getBlockIds() {
-        return blockIds;
-    }
-
-    public void setBlockIds(List<Long> blockIds) {
-        this.blockIds = blockIds;
+        this.extents = extents.clone();
+    }
+
+    public Extent[] getExtents() {
+        return extents;
+    }
+
+    public void setExtents(Extent[] extents) {
+        this.extents = extents;
+    }
+
+    public int getBlockCount() {
+        int count = 0;
+        for (Extent extent : extents) {
+            count += extent.getBlockCount();
+        }
+        return count;
+    }
+
+    /** Returns the id of the block at {@code index} in file order. */
+    public long getBlockId(int index) {
+        for (Extent extent : extents) {
+            if (index < extent.getBlockCount()) {
+                return extent.getBlockId(index);
+            }
+            index -= extent.getBlockCount();
+        }
+        throw new IndexOutOfBoundsException("Block index out of range");
+    }
+
+    /**
+     * Returns the id of the block holding the byte at {@code offset}, found by a binary search
+     * over the extents and arithmetic within the extent.
+     */
+    public long getBlockIdAt(long offset) {
+        ExtentMap map = getExtentMap();
+        Extent[] extents = map.extents;
+        long[] offsets = map.offsets;
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        // Skip empty extents that start at the same offset.
+        while (i < extents.length && extents[i].getLength() == 0) {
+            i++;
+        }
+        if (offset < 0 || i < 0 || i >= extents.length || offset - offsets[i] >= extents[i].getLength()) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is outside the file");
+        }
+        return extents[i].getBlockId((int) ((offset - offsets[i]) / blockSize));
+    }
+
+    private ExtentMap getExtentMap() {
+        Extent[] current = extents;
+        ExtentMap map = extentMap;
+        if (map == null || map.extents != current) {
+            map = new ExtentMap(current);
+            extentMap = map;
+        }
+        return map;
     }
 
     public FileType getFileType() {
@@ -76,12 +152,38 @@ public class Inode implements Serializable {
         this.group = group;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public Inode getParent() {
+        return parent;
+    }
+
+    public void setParent(Inode parent) {
+        this.parent = parent;
+    }
+
+    /** Builds the full path by walking up the parent links. */
     public String getAddress() {
-        return address;
+        if (parent == null) {
+            return "/";
+        }
+        StringBuilder address = new StringBuilder();
+        appendAddress(address);
+        return address.toString();
     }
 
-    public void setAddress(String address) {
-        this.address = address;
+    private void appendAddress(StringBuilder address) {
+        if (parent != null) {
+            parent.appendAddress(address);
+            address.append('/').append(name);
+        }
+    }
+
+    /** Returns the last component of a path, e.g. "b" for "/a/b". */
+    public static String nameOf(String address) {
+        return address.substring(address.lastIndexOf('/') + 1);
     }
 
     public long getSize() {
@@ -92,6 +194,22 @@ public class Inode implements Serializable {
         this.size = size;
     }
 
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getReservedBlockIdEnd() {
+        return reservedBlockIdEnd;
+    }
+
+    public void setReservedBlockIdEnd(long reservedBlockIdEnd) {
+        this.reservedBlockIdEnd = reservedBlockIdEnd;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
     public Date getCreate() {
         return create;
     }
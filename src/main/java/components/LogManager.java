@@ -1,5 +1,7 @@
 package components;
 
+import io.github.cdimascio.dotenv.Dotenv;
+
 import java.io.IOException;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -8,14 +10,17 @@ import java.util.logging.SimpleFormatter;
 
 public class LogManager {
     private static final Logger logger = Logger.getLogger(LogManager.class.getName());
+    private static final Level LEVEL;
 
     static {
+        Dotenv dotenv = Dotenv.load();
+        LEVEL = Level.parse(dotenv.get("LOG_LEVEL", "INFO"));
         try {
             // Set the file size to 1 MB and keep up to 5 log files
             FileHandler fileHandler = new FileHandler("transactions.log", 1024 * 1024, 5, true);
             fileHandler.setFormatter(new SimpleFormatter());
             logger.addHandler(fileHandler);
-            logger.setLevel(Level.ALL);
+            logger.setLevel(LEVEL);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -24,4 +29,9 @@ public class LogManager {
     public static Logger getLogger() {
         return logger;
     }
+
+    /** The level set by {@code LOG_LEVEL} in .env; per-request messages are logged at FINE. */
+    public static Level getLevel() {
+        return LEVEL;
+    }
 }
\ No newline at end of file
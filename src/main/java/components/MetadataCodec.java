@@ -0,0 +1,243 @@
+package components;
+
+import interfaces.FileType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of inode metadata. Integers are varints (zig-zag where they may be
+ * negative), timestamps are epoch millis with access and modify stored relative to create,
+ * owner and group names are written once and then referenced by index, each address is
+ * stored as the length of the prefix it shares with the previous one plus the rest, and
+ * extents are packed with each start id relative to the end of the previous extent.
+ *
+ * An {@link Encoder} and the {@link Decoder} reading its output keep the same string table and
+ * previous address, so a run of records (e.g. a checkpoint) must be decoded in the order it
+ * was encoded, with one decoder.
+ */
+public final class MetadataCodec {
+    public static final byte VERSION = 2;
+
+    private MetadataCodec() {
+    }
+
+    public static final class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private String previousAddress = "";
+
+        public Encoder writeByte(int value) {
+            out.write(value);
+            return this;
+        }
+
+        public Encoder writeFixedLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (value >>> shift));
+            }
+            return this;
+        }
+
+        public Encoder writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+            return this;
+        }
+
+        public Encoder writeSignedVarLong(long value) {
+            return writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        public Encoder writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        /** Writes the string the first time, and its index in the string table after that. */
+        public Encoder writeInternedString(String value) {
+            Integer index = strings.get(value);
+            if (index != null) {
+                return writeVarLong(index + 1);
+            }
+            strings.put(value, strings.size());
+            writeVarLong(0);
+            return writeString(value);
+        }
+
+        public Encoder writeAddress(String address) {
+            int shared = 0;
+            int max = Math.min(address.length(), previousAddress.length());
+            while (shared < max && address.charAt(shared) == previousAddress.charAt(shared)) {
+                shared++;
+            }
+            writeVarLong(shared);
+            writeString(address.substring(shared));
+            previousAddress = address;
+            return this;
+        }
+
+        /** Writes the inode's metadata, except its name, parent and file type, which callers store. */
+        public Encoder writeInode(Inode inode) {
+            writeSignedVarLong(inode.getInodeNumber());
+            writeInternedString(inode.getOwner());
+            writeInternedString(inode.getGroup());
+            writeVarLong(inode.getSize());
+            writeVarLong(inode.getBlockSize());
+            long create = inode.getCreate().getTime();
+            writeSignedVarLong(create);
+            writeSignedVarLong(inode.getAccess().getTime() - create);
+            writeSignedVarLong(inode.getModify().getTime() - create);
+            return writeExtents(inode.getExtents());
+        }
+
+        public Encoder writeExtents(Extent[] extents) {
+            writeVarLong(extents.length);
+            long previousEnd = 0;
+            for (Extent extent : extents) {
+                writeSignedVarLong(extent.getStartBlockId() - previousEnd);
+                writeVarLong(extent.getBlockCount());
+                writeVarLong(extent.getLength());
+                previousEnd = extent.getStartBlockId() + extent.getBlockCount();
+            }
+            return this;
+        }
+
+        public int size() {
+            return out.size();
+        }
+
+        /** Returns the bytes written since the last call and starts a new record. */
+        public byte[] take() {
+            byte[] bytes = out.toByteArray();
+            out.reset();
+            return bytes;
+        }
+    }
+
+    public static final class Decoder {
+        private final List<String> strings = new ArrayList<>();
+        private String previousAddress = "";
+        private ByteBuffer in;
+
+        /** Starts reading the next record; the string table and previous address carry over. */
+        public Decoder reset(byte[] record) {
+            this.in = ByteBuffer.wrap(record);
+            return this;
+        }
+
+        public int readByte() throws IOException {
+            try {
+                return in.get() & 0xFF;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated metadata record", e);
+            }
+        }
+
+        public long readFixedLong() throws IOException {
+            try {
+                return in.getLong();
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated metadata record", e);
+            }
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in metadata record");
+        }
+
+        public int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IOException("Metadata value out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        public long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public String readString() throws IOException {
+            int length = readVarInt();
+            if (length > in.remaining()) {
+                throw new IOException("Truncated metadata record");
+            }
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+
+        public String readInternedString() throws IOException {
+            int index = readVarInt();
+            if (index == 0) {
+                String value = readString();
+                strings.add(value);
+                return value;
+            }
+            if (index > strings.size()) {
+                throw new IOException("Unknown string reference " + index);
+            }
+            return strings.get(index - 1);
+        }
+
+        public String readAddress() throws IOException {
+            int shared = readVarInt();
+            if (shared > previousAddress.length()) {
+                throw new IOException("Invalid address prefix length " + shared);
+            }
+            previousAddress = previousAddress.substring(0, shared) + readString();
+            return previousAddress;
+        }
+
+        public Inode readInode(String name, FileType fileType) throws IOException {
+            long inodeNumber = readSignedVarLong();
+            String owner = readInternedString();
+            String group = readInternedString();
+            long size = readVarLong();
+            int blockSize = readVarInt();
+            long create = readSignedVarLong();
+            Date access = new Date(create + readSignedVarLong());
+            Date modify = new Date(create + readSignedVarLong());
+            Extent[] extents = readExtents();
+
+            Inode inode = new Inode(owner, group, name, size, fileType, new Date(create), access, modify, inodeNumber, extents);
+            inode.setBlockSize(blockSize);
+            return inode;
+        }
+
+        public Extent[] readExtents() throws IOException {
+            Extent[] extents = new Extent[readVarInt()];
+            long previousEnd = 0;
+            for (int i = 0; i < extents.length; i++) {
+                long start = previousEnd + readSignedVarLong();
+                int count = readVarInt();
+                extents[i] = new Extent(start, count, readVarLong());
+                previousEnd = start + count;
+            }
+            return extents;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package components;
+
+/**
+ * A reusable view of one component of a path, for looking up directory entries without cutting
+ * a substring out of the path. Its hash code is the same as the {@link String} with the same
+ * characters, and it compares equal and orders against Strings, so it can be passed to
+ * {@code get} on hash and tree maps keyed by names. It must never be stored as a key.
+ */
+public final class NameView implements CharSequence, Comparable<String> {
+    private String path = "";
+    private int start;
+    private int end;
+    private int hash;
+
+    /** Points the view at {@code path[start, end)}. */
+    public NameView set(String path, int start, int end) {
+        this.path = path;
+        this.start = start;
+        this.end = end;
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        this.hash = h;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return path.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return path.subSequence(start + from, start + to);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof String) {
+            String name = (String) other;
+            return name.length() == length() && path.regionMatches(start, name, 0, length());
+        }
+        if (other instanceof NameView) {
+            NameView view = (NameView) other;
+            return view.length() == length() && path.regionMatches(start, view.path, view.start, length());
+        }
+        return false;
+    }
+
+    @Override
+    public int compareTo(String name) {
+        int length = Math.min(length(), name.length());
+        for (int i = 0; i < length; i++) {
+            int diff = path.charAt(start + i) - name.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length() - name.length();
+    }
+
+    @Override
+    public String toString() {
+        return path.substring(start, end);
+    }
+}
@@ -0,0 +1,240 @@
+package components;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import org.apache.ratis.client.RaftClient;
+import org.apache.ratis.client.RaftClientConfigKeys;
+import org.apache.ratis.conf.RaftProperties;
+import org.apache.ratis.protocol.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps a fixed pool of long-lived RaftClients open against the block servers so that
+ * block operations reuse connections instead of building a new client per call.
+ * Clients are handed out round-robin and are safe to share between threads.
+ */
+public class RaftClientManager implements Closeable {
+    public static final List<String> PEER_ADDR = Arrays.asList(
+            "localhost:8081",
+            "localhost:8082",
+            "localhost:8083"
+    );
+
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final RaftClientManager INSTANCE;
+
+    static {
+        Dotenv dotenv = Dotenv.load();
+        int poolSize = Integer.parseInt(dotenv.get("RAFT_CLIENT_POOL_SIZE", String.valueOf(DEFAULT_POOL_SIZE)));
+        int maxInFlight = Integer.parseInt(dotenv.get("RAFT_CLIENT_MAX_IN_FLIGHT", String.valueOf(DEFAULT_MAX_IN_FLIGHT)));
+        boolean staleReads = Boolean.parseBoolean(dotenv.get("RAFT_STALE_READS", "false"));
+
+        RaftGroupId raftGroupId = RaftGroupId.valueOf(UUID.fromString("12345678-1234-1234-1234-123456789012"));
+        List<RaftPeer> peers = PEER_ADDR.stream()
+                .map(addr -> RaftPeer.newBuilder().setId(RaftPeerId.valueOf("n" + addr)).setAddress(addr).build())
+                .collect(Collectors.toList());
+
+        INSTANCE = new RaftClientManager(RaftGroup.valueOf(raftGroupId, peers), poolSize, maxInFlight, staleReads);
+        Runtime.getRuntime().addShutdownHook(new Thread(INSTANCE::close));
+    }
+
+    private final RaftGroup raftGroup;
+    private final RaftProperties raftProperties;
+    private final AtomicReferenceArray<RaftClient> clients;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final boolean staleReads;
+    private final List<RaftPeerId> readPeers;
+    private final AtomicInteger nextReadPeer = new AtomicInteger();
+
+    private volatile RaftPeerId leaderId;
+    // Log index of the latest write the leader has acknowledged; stale reads must have applied it.
+    private final AtomicLong lastWriteIndex = new AtomicLong();
+
+    public RaftClientManager(RaftGroup raftGroup, int poolSize, int maxInFlight, boolean staleReads) {
+        if (poolSize <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Pool size and in-flight limit must be positive");
+        }
+        this.raftGroup = raftGroup;
+        this.clients = new AtomicReferenceArray<>(poolSize);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.staleReads = staleReads;
+        this.readPeers = raftGroup.getPeers().stream()
+                .map(RaftPeer::getId)
+                .collect(Collectors.toList());
+
+        this.raftProperties = new RaftProperties();
+        RaftClientConfigKeys.Async.setOutstandingRequestsMax(raftProperties, maxInFlight);
+    }
+
+    public static RaftClientManager getInstance() {
+        return INSTANCE;
+    }
+
+    public RaftGroup getRaftGroup() {
+        return raftGroup;
+    }
+
+    public int getPoolSize() {
+        return clients.length();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public RaftPeerId getLeaderId() {
+        return leaderId;
+    }
+
+    public boolean isStaleReadEnabled() {
+        return staleReads;
+    }
+
+    public RaftClientReply send(Message message) throws IOException {
+        acquire();
+        try {
+            RaftClientReply reply = nextClient().io().send(message);
+            updateLeader(reply);
+            updateWriteIndex(reply);
+            return reply;
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Blocks the caller while the in-flight window is full, so a large upload can only run
+     * {@link #getMaxInFlight()} requests ahead of the replies.
+     */
+    public CompletableFuture<RaftClientReply> sendAsync(Message message) throws IOException {
+        acquire();
+        try {
+            return nextClient().async().send(message)
+                    .whenComplete((reply, e) -> {
+                        inFlight.release();
+                        if (reply != null) {
+                            updateLeader(reply);
+                            updateWriteIndex(reply);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a read-only request, which is answered by {@code StateMachine.query} without
+     * appending to the Raft log. With {@code stale} set, the request goes to the replicas in
+     * turn. A follower answers it only once it has applied every write acknowledged before the
+     * request was sent, so a block stored again in place is never read back with its old data.
+     * A follower that hasn't yet committed them fails the request instead.
+     */
+    public CompletableFuture<RaftClientReply> sendReadOnlyAsync(Message message, boolean stale) throws IOException {
+        acquire();
+        try {
+            if (stale) {
+                return nextClient().async().sendStaleRead(message, lastWriteIndex.get(), nextReadPeer())
+                        .whenComplete((reply, e) -> inFlight.release());
+            }
+            return nextClient().async().sendReadOnly(message)
+                    .whenComplete((reply, e) -> {
+                        inFlight.release();
+                        if (reply != null) {
+                            updateLeader(reply);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private RaftPeerId nextReadPeer() {
+        return readPeers.get(Math.floorMod(nextReadPeer.getAndIncrement(), readPeers.size()));
+    }
+
+    private void acquire() throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a Raft client slot", e);
+        }
+    }
+
+    /**
+     * Slots are filled lazily so that clients built after the first reply already know the
+     * leader and don't have to be redirected to it.
+     */
+    private RaftClient nextClient() {
+        int slot = Math.floorMod(next.getAndIncrement(), clients.length());
+        RaftClient client = clients.get(slot);
+        if (client != null) {
+            return client;
+        }
+
+        synchronized (clients) {
+            client = clients.get(slot);
+            if (client == null) {
+                RaftClient.Builder builder = RaftClient.newBuilder()
+                        .setProperties(raftProperties)
+                        .setRaftGroup(raftGroup);
+                if (leaderId != null) {
+                    builder.setLeaderId(leaderId);
+                }
+                client = builder.build();
+                clients.set(slot, client);
+            }
+            return client;
+        }
+    }
+
+    private void updateLeader(RaftClientReply reply) {
+        if (reply.isSuccess() && reply.getServerId() != null) {
+            leaderId = reply.getServerId();
+        }
+    }
+
+    private void updateWriteIndex(RaftClientReply reply) {
+        if (reply.isSuccess()) {
+            lastWriteIndex.accumulateAndGet(reply.getLogIndex(), Math::max);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (clients) {
+            for (int i = 0; i < clients.length(); i++) {
+                RaftClient client = clients.getAndSet(i, null);
+                if (client == null) {
+                    continue;
+                }
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -31,15 +31,18 @@ public class Transaction {
     }
 
     public void execute() {
-        logger.log(Level.INFO, "Starting transaction: " + transactionID);
+        logger.log(Level.FINE, "Starting transaction: " + transactionID);
+        int started = 0;
         try {
             for (Runnable operation : operations) {
+                started++;
                 operation.run();
             }
-            logger.log(Level.INFO, "Transaction " + transactionID + " completed successfully.");
+            logger.log(Level.FINE, "Transaction " + transactionID + " completed successfully.");
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Transaction " + transactionID + " failed. Rolling back.", e);
-            for (int i = undoOperations.size() - 1; i >= 0; i--) {
+            // Only undo the operations that ran, including the one that failed part way.
+            for (int i = started - 1; i >= 0; i--) {
                 try {
                     undoOperations.get(i).run();
                 } catch (Exception rollbackException) {
@@ -6,11 +6,16 @@ import java.util.logging.Logger;
 public class TransactionManager {
     private static final Logger logger = LogManager.getLogger();
 
-    public void executeTransaction(Transaction transaction) {
+    /**
+     * Returns false if the transaction failed and was rolled back.
+     */
+    public boolean executeTransaction(Transaction transaction) {
         try {
             transaction.execute();
+            return true;
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Transaction " + transaction.getTransactionID() + " failed and rolled back.", e);
+            return false;
         }
     }
 }
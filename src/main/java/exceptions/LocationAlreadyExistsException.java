@@ -0,0 +1,11 @@
+package exceptions;
+
+public class LocationAlreadyExistsException extends Exception {
+    public LocationAlreadyExistsException(String message) {
+        super(message);
+    }
+
+    public LocationAlreadyExistsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,56 @@
+package filesystem;
+
+/**
+ * One namespace change in a batch for {@link FileSystem#applyBatch(java.util.List)}. Paths are
+ * absolute or relative to the current directory, and may name directories created earlier in
+ * the same batch.
+ */
+public final class BatchOperation {
+    public enum Type {
+        CREATE_FILE, MKDIR, DELETE
+    }
+
+    private final Type type;
+    private final String path;
+    private final byte[] data;
+    // For MKDIR: create missing parents and accept an existing directory. For DELETE: remove a directory with its contents.
+    private final boolean recursive;
+
+    private BatchOperation(Type type, String path, byte[] data, boolean recursive) {
+        this.type = type;
+        this.path = path;
+        this.data = data;
+        this.recursive = recursive;
+    }
+
+    /** Creates or replaces a file. */
+    public static BatchOperation createFile(String path, byte[] data) {
+        return new BatchOperation(Type.CREATE_FILE, path, data, false);
+    }
+
+    /** Creates a directory; with {@code parents}, like "mkdir -p". */
+    public static BatchOperation mkdir(String path, boolean parents) {
+        return new BatchOperation(Type.MKDIR, path, null, parents);
+    }
+
+    /** Deletes a file, or with {@code recursive} a directory and everything under it, like "rm -r". */
+    public static BatchOperation delete(String path, boolean recursive) {
+        return new BatchOperation(Type.DELETE, path, null, recursive);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+}
@@ -0,0 +1,249 @@
+package filesystem;
+
+import components.DirBlock;
+import components.Extent;
+import components.FileBlock;
+import components.IdAllocator;
+import components.Inode;
+import exceptions.InvalidFileTypeException;
+import exceptions.LocationAlreadyExistsException;
+import exceptions.LocationDoesNotExistException;
+import interfaces.FileType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The links and unlinks that apply a batch of {@link BatchOperation}s, worked out against the
+ * namespace as it is plus the batch's own earlier steps. Planning only reads the namespace and
+ * takes no locks; {@link FileSystem} applies the steps while holding the write locks of
+ * {@link #getDirectories()}, after planning again under them to catch concurrent changes.
+ */
+class BatchPlan {
+    static final class Step {
+        final boolean link;
+        final Inode parent;
+        final Inode inode;
+
+        Step(boolean link, Inode parent, Inode inode) {
+            this.link = link;
+            this.parent = parent;
+            this.inode = inode;
+        }
+    }
+
+    private final FileSystem fileSystem;
+    // Directories made by this or earlier plans of the batch, by parent inode number and name.
+    private final Map<String, Inode> newDirs;
+    private final List<Step> steps = new ArrayList<>();
+    // Entries changed by earlier steps, by directory; a null value is a removed entry.
+    private final Map<Inode, Map<String, Inode>> changed = new HashMap<>();
+    // Directories created by the batch, whose entries are all in changed.
+    private final Set<Inode> created = new HashSet<>();
+    private final Map<Inode, Inode> createdParents = new HashMap<>();
+    // Inode numbers of the directories whose entries change.
+    private final Set<Long> directories = new HashSet<>();
+    private final List<FileBlock> removedBlocks = new ArrayList<>();
+
+    /**
+     * Plans the operations in order. {@code extents[i]} holds the uploaded blocks of operation
+     * i if it creates a file. New directories are taken from {@code newDirs} when an earlier
+     * plan of the batch made them, so planning again yields the same inodes to lock. Throws if
+     * an operation can't be applied; nothing is changed then.
+     */
+    BatchPlan(FileSystem fileSystem, Inode root, Inode cwd, List<BatchOperation> operations, Extent[][] extents,
+              int fileBlockSize, Map<String, Inode> newDirs)
+            throws LocationDoesNotExistException, InvalidFileTypeException, LocationAlreadyExistsException {
+        this.fileSystem = fileSystem;
+        this.newDirs = newDirs;
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation operation = operations.get(i);
+            String path = trimTrailingSlashes(operation.getPath());
+            int slash = path.lastIndexOf('/');
+            String name = path.substring(slash + 1);
+            if (!FileSystem.isValidName(name)) {
+                throw new InvalidFileTypeException("Not a valid name: " + operation.getPath());
+            }
+            String parentPath = slash < 0 ? "" : slash == 0 ? "/" : path.substring(0, slash);
+            Inode parent = walk(path.startsWith("/") ? root : cwd, parentPath,
+                    operation.getType() == BatchOperation.Type.MKDIR && operation.isRecursive());
+            Inode existing = lookup(parent, name);
+
+            switch (operation.getType()) {
+                case CREATE_FILE:
+                    if (existing != null) {
+                        if (existing.getFileType() == FileType.DIRECTORY) {
+                            throw new InvalidFileTypeException(path + " is a directory");
+                        }
+                        unlink(parent, existing);
+                    }
+                    long size = operation.getData().length;
+                    Inode file = fileSystem.newInode(name, size, FileType.FILE, extents[i]);
+                    file.setBlockSize(fileBlockSize);
+                    link(parent, file);
+                    break;
+                case MKDIR:
+                    if (existing == null) {
+                        createDir(parent, name);
+                    } else if (existing.getFileType() != FileType.DIRECTORY) {
+                        throw new InvalidFileTypeException(path + " is not a directory");
+                    } else if (!operation.isRecursive()) {
+                        throw new LocationAlreadyExistsException(path + " already exists");
+                    }
+                    break;
+                case DELETE:
+                    if (existing == null) {
+                        throw new LocationDoesNotExistException(path + " does not exist");
+                    }
+                    if (existing.getFileType() == FileType.DIRECTORY && !operation.isRecursive()) {
+                        throw new InvalidFileTypeException(path + " is a directory");
+                    }
+                    unlinkTree(parent, existing);
+                    break;
+            }
+        }
+    }
+
+    private static String trimTrailingSlashes(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(0, end);
+    }
+
+    /** Walks to a directory, creating the missing ones if {@code create} is set. */
+    private Inode walk(Inode from, String path, boolean create)
+            throws LocationDoesNotExistException, InvalidFileTypeException {
+        Inode cur = from;
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                Inode parent = created.contains(cur) ? createdParents.get(cur) : cur.getParent();
+                cur = parent == null ? cur : parent;
+                continue;
+            }
+            Inode next = lookup(cur, name);
+            if (next == null) {
+                if (!create) {
+                    throw new LocationDoesNotExistException("Path does not exist: " + path);
+                }
+                next = createDir(cur, name);
+            } else if (next.getFileType() != FileType.DIRECTORY) {
+                throw new InvalidFileTypeException(name + " is not a directory");
+            }
+            cur = next;
+        }
+        return cur;
+    }
+
+    private Inode lookup(Inode dir, String name) {
+        Map<String, Inode> entries = changed.get(dir);
+        if (entries != null && entries.containsKey(name)) {
+            return entries.get(name);
+        }
+        if (created.contains(dir)) {
+            return null;
+        }
+        DirBlock block = fileSystem.dirBlockOf(dir);
+        return block == null ? null : block.lookup(name);
+    }
+
+    /** The directory's entries with the batch's earlier steps applied. */
+    private List<Inode> children(Inode dir) {
+        Map<String, Inode> entries = new LinkedHashMap<>();
+        if (!created.contains(dir)) {
+            DirBlock block = fileSystem.dirBlockOf(dir);
+            if (block != null) {
+                for (Iterator<Inode> it = block.iterator(); it.hasNext(); ) {
+                    Inode child = it.next();
+                    entries.put(child.getName(), child);
+                }
+            }
+        }
+        Map<String, Inode> overlay = changed.get(dir);
+        if (overlay != null) {
+            for (Map.Entry<String, Inode> entry : overlay.entrySet()) {
+                if (entry.getValue() == null) {
+                    entries.remove(entry.getKey());
+                } else {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private Inode createDir(Inode parent, String name) {
+        Inode dir = newDirs.computeIfAbsent(parent.getInodeNumber() + "/" + name, key ->
+                fileSystem.newInode(name, 0, FileType.DIRECTORY, new Extent(IdAllocator.getBlockIds().next(), 1, 0)));
+        created.add(dir);
+        createdParents.put(dir, parent);
+        directories.add(dir.getInodeNumber());
+        link(parent, dir);
+        return dir;
+    }
+
+    private void link(Inode parent, Inode inode) {
+        steps.add(new Step(true, parent, inode));
+        changed.computeIfAbsent(parent, dir -> new HashMap<>()).put(inode.getName(), inode);
+        directories.add(parent.getInodeNumber());
+    }
+
+    private void unlink(Inode parent, Inode inode) {
+        steps.add(new Step(false, parent, inode));
+        changed.computeIfAbsent(parent, dir -> new HashMap<>()).put(inode.getName(), null);
+        directories.add(parent.getInodeNumber());
+        if (inode.getFileType() == FileType.DIRECTORY) {
+            // Nothing may be added to a directory while it is being removed.
+            directories.add(inode.getInodeNumber());
+        } else {
+            removedBlocks.addAll(FileSystem.fileBlocks(inode));
+        }
+    }
+
+    /**
+     * Unlinks an inode and, for a directory, everything under it, children before their parents.
+     * The tree is listed with an explicit stack, so a deep tree can't overflow the call stack.
+     */
+    private void unlinkTree(Inode parent, Inode top) {
+        List<Inode[]> preOrder = new ArrayList<>();
+        Deque<Inode[]> pending = new ArrayDeque<>();
+        pending.push(new Inode[] {parent, top});
+        while (!pending.isEmpty()) {
+            Inode[] entry = pending.pop();
+            preOrder.add(entry);
+            if (entry[1].getFileType() == FileType.DIRECTORY) {
+                for (Inode child : children(entry[1])) {
+                    pending.push(new Inode[] {entry[1], child});
+                }
+            }
+        }
+        for (int i = preOrder.size() - 1; i >= 0; i--) {
+            unlink(preOrder.get(i)[0], preOrder.get(i)[1]);
+        }
+    }
+
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    Set<Long> getDirectories() {
+        return directories;
+    }
+
+    /** The blocks of existing files the batch deletes or replaces, to free once it is applied. */
+    List<FileBlock> getRemovedBlocks() {
+        return removedBlocks;
+    }
+}
@@ -0,0 +1,82 @@
+package filesystem;
+
+import components.FileBlock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fetches file blocks concurrently while handing them back in block order. At most
+ * {@code fanOut} fetches are outstanding at once, and a sequential reader always has that
+ * many blocks being prefetched ahead of the one it is consuming.
+ */
+public class BlockReader {
+    private final int fanOut;
+
+    public BlockReader(int fanOut) {
+        if (fanOut <= 0) {
+            throw new IllegalArgumentException("Fan-out must be positive");
+        }
+        this.fanOut = fanOut;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * Returns the data of every block in order. An element is null if that block could not be fetched.
+     */
+    public List<byte[]> readAll(List<FileBlock> blocks) {
+        List<byte[]> result = new ArrayList<>(blocks.size());
+        Iterator<byte[]> it = stream(blocks);
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the block data lazily in order, keeping up to {@code fanOut} fetches in flight
+     * ahead of the caller.
+     */
+    public Iterator<byte[]> stream(List<FileBlock> blocks) {
+        return new PrefetchIterator(blocks);
+    }
+
+    private class PrefetchIterator implements Iterator<byte[]> {
+        private final List<FileBlock> blocks;
+        private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        private int nextToFetch = 0;
+
+        PrefetchIterator(List<FileBlock> blocks) {
+            this.blocks = blocks;
+            fill();
+        }
+
+        private void fill() {
+            while (pending.size() < fanOut && nextToFetch < blocks.size()) {
+                pending.add(blocks.get(nextToFetch++).getDataAsync());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public byte[] next() {
+            if (pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            byte[] data = pending.poll().join();
+            fill();
+            return data;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package filesystem;
+
+import components.Inode;
+import components.NameView;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the directory that a hot absolute path prefix such as "/a/b/c" resolves to, so lookups
+ * under deep directories skip the walk from the root. Entries are stamped with a generation that
+ * is bumped whenever a directory is unlinked or replaced, which drops every entry at once. The
+ * cache is bounded by clearing it when it fills up.
+ */
+class DentryCache {
+    private static final class Entry {
+        final Inode dir;
+        final long generation;
+
+        Entry(Inode dir, long generation) {
+            this.dir = dir;
+            this.generation = generation;
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Entry> entries;
+    private final AtomicLong generation = new AtomicLong();
+
+    DentryCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>(capacity);
+    }
+
+    /** Returns the directory cached for {@code path[0, end)}, or null. */
+    Inode get(String path, int end, NameView key) {
+        Entry entry = entries.get(key.set(path, 0, end));
+        if (entry == null || entry.generation != generation.get()) {
+            return null;
+        }
+        return entry.dir;
+    }
+
+    /**
+     * Caches a resolved prefix. {@code generation} must be read before the walk that resolved
+     * it, so a directory change racing with the walk leaves the entry stale rather than wrong.
+     */
+    void put(String prefix, Inode dir, long generation) {
+        if (entries.size() >= capacity) {
+            entries.clear();
+        }
+        entries.put(prefix, new Entry(dir, generation));
+    }
+
+    long generation() {
+        return generation.get();
+    }
+
+    void invalidate() {
+        generation.incrementAndGet();
+    }
+}
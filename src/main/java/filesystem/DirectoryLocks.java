@@ -0,0 +1,60 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks for directories, keyed by the directory's inode number. A namespace
+ * change takes the write lock of the directory it changes and lookups take the read lock, so
+ * operations on unrelated directories only contend when their inode numbers share a stripe.
+ *
+ * Lock order: an operation that needs more than one directory must take them through
+ * {@link #writeLockAll(long...)}, which locks the stripes in ascending stripe index.
+ */
+public class DirectoryLocks {
+    private final ReentrantReadWriteLock[] stripes;
+
+    public DirectoryLocks(int stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two");
+        }
+        this.stripes = new ReentrantReadWriteLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private int stripeOf(long inodeNumber) {
+        long h = inodeNumber * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (stripes.length - 1);
+    }
+
+    public ReadWriteLock get(long inodeNumber) {
+        return stripes[stripeOf(inodeNumber)];
+    }
+
+    /**
+     * Takes the write locks of all the given directories in lock order and returns them in
+     * the order they must be released.
+     */
+    public List<Lock> writeLockAll(long... inodeNumbers) {
+        int[] indexes = Arrays.stream(inodeNumbers).mapToInt(this::stripeOf).distinct().sorted().toArray();
+        List<Lock> locked = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            Lock lock = stripes[index].writeLock();
+            lock.lock();
+            locked.add(0, lock);
+        }
+        return locked;
+    }
+
+    public static void unlockAll(List<Lock> locks) {
+        for (Lock lock : locks) {
+            lock.unlock();
+        }
+    }
+}
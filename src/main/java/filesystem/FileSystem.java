@@ -2,6 +2,7 @@ package filesystem;
 
 import components.*;
 import exceptions.InvalidFileTypeException;
+import exceptions.LocationAlreadyExistsException;
 import exceptions.LocationDoesNotExistException;
 import interfaces.FileType;
 
@@ -9,33 +10,70 @@ import java.io.*;
 import java.net.Socket;
 import java.util.*;
 
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 import io.github.cdimascio.dotenv.Dotenv;
 
-import static components.Block.BLOCK_SIZE;
-
 public class FileSystem {
-    private Map<Long, Block> blockStore;
-    private Map<Long, Inode> inodeStore;
-    private Map<String, Inode> inodeNameStore;
+    private LongHashMap<Block> blockStore;
+    private LongHashMap<Inode> inodeStore;
+    // Paths are resolved by walking directory entries from here; there is no index by full path.
+    private final Inode root;
+    // Null when DENTRY_CACHE_SIZE is 0.
+    private final DentryCache dentryCache;
+    // Lookup key reused by every path resolution on a thread.
+    private static final ThreadLocal<NameView> LOOKUP_NAME = ThreadLocal.withInitial(NameView::new);
 
     private String userName;
     private String group;
+    private final int blockSize;
 
     private final ThreadLocal<Inode> curDir;
     private final TransactionManager transactionManager;
-
-    private final Lock lock = new ReentrantLock();
-
-    private final Lock blockStoreLock = new ReentrantLock();
-    private final Lock inodeStoreLock = new ReentrantLock();
-    private final Lock inodeNameStoreLock = new ReentrantLock();
-    private final Lock curDirLock = new ReentrantLock();
+    private final BlockReader blockReader;
+
+    // The stores are concurrent maps; directory locks only order changes within a directory.
+    // Lock order: contentLocks, checkpointWriter, checkpointLock, then directory stripes in ascending order.
+    private final DirectoryLocks dirLocks;
+    // Striped by file inode number; serializes partial writes to a file, held across their block uploads.
+    private final DirectoryLocks contentLocks;
+
+    // Mutations hold the read lock while they change the namespace and journal it; a
+    // checkpoint takes the write lock to capture a consistent image.
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // Held while a checkpoint is taken and written, so checkpoints finish in sequence order and
+    // one never deletes a newer one or another's temporary file.
+    private final ReentrantLock checkpointWriter = new ReentrantLock();
+    private final File metadataDir;
+    private final MetadataJournal journal;
+    private final AtomicLong recordsSinceCheckpoint = new AtomicLong();
+    // Last journal sequence each metadata replica has acknowledged.
+    private final Map<String, Long> replicaPositions = new ConcurrentHashMap<>();
 
     private static final List<String> SERVERS;
+    private static final int READ_FAN_OUT;
+    private static final int WRITE_FAN_OUT;
+    private static final int BLOCK_SIZE;
+    private static final int LOCK_STRIPES;
+    private static final String METADATA_DIR;
+    private static final long CHECKPOINT_INTERVAL;
+    private static final boolean JOURNAL_SYNC;
+    private static final int LOAD_THREADS;
+    private static final int DENTRY_CACHE_SIZE;
+    public static final int LIST_PAGE_SIZE = 1024;
+    // Most block ids a growing file reserves ahead at once.
+    private static final int MAX_GROWTH_RESERVE = 1024;
 
     private String server1;
     private String server2;
@@ -46,33 +84,346 @@ public class FileSystem {
         SERVERS = Arrays.stream(hosts.split(","))
                 .map(String::trim)
                 .collect(Collectors.toList());
+        READ_FAN_OUT = Integer.parseInt(dotenv.get("READ_FAN_OUT", "8"));
+        WRITE_FAN_OUT = Integer.parseInt(dotenv.get("WRITE_FAN_OUT", "8"));
+        BLOCK_SIZE = Integer.parseInt(dotenv.get("BLOCK_SIZE", String.valueOf(Block.DEFAULT_BLOCK_SIZE)));
+        LOCK_STRIPES = Integer.parseInt(dotenv.get("METADATA_LOCK_STRIPES", "256"));
+        METADATA_DIR = dotenv.get("METADATA_DIR", "metadata");
+        CHECKPOINT_INTERVAL = Long.parseLong(dotenv.get("METADATA_CHECKPOINT_INTERVAL", "10000"));
+        JOURNAL_SYNC = Boolean.parseBoolean(dotenv.get("METADATA_JOURNAL_SYNC", "true"));
+        LOAD_THREADS = Integer.parseInt(dotenv.get("METADATA_LOAD_THREADS",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        DENTRY_CACHE_SIZE = Integer.parseInt(dotenv.get("DENTRY_CACHE_SIZE", "4096"));
     }
 
     public FileSystem(String userName, String group) {
+        this(userName, group, BLOCK_SIZE);
+    }
+
+    public FileSystem(String userName, String group, int blockSize) {
         this.userName = userName;
         this.group = group;
+        this.blockSize = Block.checkBlockSize(blockSize);
 
-        this.blockStore = new HashMap<>();
-        this.inodeStore = new HashMap<>();
-        this.inodeNameStore = new HashMap<>();
+        this.blockStore = new LongHashMap<>();
+        this.inodeStore = new LongHashMap<>();
+        this.dentryCache = DENTRY_CACHE_SIZE > 0 ? new DentryCache(DENTRY_CACHE_SIZE) : null;
+        this.dirLocks = new DirectoryLocks(LOCK_STRIPES);
+        this.contentLocks = new DirectoryLocks(LOCK_STRIPES);
         this.transactionManager = new TransactionManager();
-
-        List<Long> startBlockIds = new ArrayList<>();
+        this.blockReader = new BlockReader(READ_FAN_OUT);
 
         DirBlock block = new DirBlock();
         this.blockStore.put(block.getBlockID(), block);
 
-        startBlockIds.add(block.getBlockID());
-
         Date now = new Date();
-        Inode rootNode = new Inode(userName, group, "/", 0, FileType.DIRECTORY, now, now, now, 0, startBlockIds);
+        Inode rootNode = new Inode(userName, group, "", 0, FileType.DIRECTORY, now, now, now, 0, new Extent(block.getBlockID(), 1, 0));
 
         this.inodeStore.put(rootNode.getInodeNumber(), rootNode);
-        this.inodeNameStore.put("/", rootNode);
+        this.root = rootNode;
         this.curDir = ThreadLocal.withInitial(() -> rootNode);
+
+        this.metadataDir = new File(METADATA_DIR);
+        try {
+            this.journal = recover();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load metadata from " + metadataDir, e);
+        }
         this.selectServers();
     }
 
+    /**
+     * Rebuilds the namespace from the latest checkpoint and the journal records after it, then
+     * opens the journal for appending.
+     */
+    private MetadataJournal recover() throws IOException {
+        long checkpointSequence = 0;
+        if (metadataDir.exists()) {
+            File checkpoint = MetadataCheckpoint.findLatest(metadataDir);
+            if (checkpoint != null) {
+                checkpointSequence = MetadataCheckpoint.sequenceOf(checkpoint);
+                loadCheckpoint(checkpoint);
+            }
+        }
+        MetadataJournal journal = new MetadataJournal(metadataDir, checkpointSequence, JOURNAL_SYNC);
+        AtomicLong replayed = new AtomicLong();
+        journal.replay(checkpointSequence, record -> {
+            apply(record);
+            replayed.incrementAndGet();
+        });
+        recordsSinceCheckpoint.set(replayed.get());
+        System.out.println("Loaded metadata up to journal sequence " + journal.getLastSequence());
+        return journal;
+    }
+
+    /**
+     * Loads a checkpoint in two parallel passes. The first decodes the mapped chunks and indexes
+     * every inode by number; once every directory is indexed, the second adds each inode to its
+     * parent directory, found by the parent's inode number. Directory sizes are taken from the checkpoint as they are.
+     */
+    private void loadCheckpoint(File checkpoint) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(LOAD_THREADS);
+        try {
+            List<List<JournalRecord>> chunks = MetadataCheckpoint.load(checkpoint, pool, this::indexCheckpointChunk);
+
+            List<Future<?>> linking = new ArrayList<>(chunks.size());
+            for (List<JournalRecord> chunk : chunks) {
+                linking.add(pool.submit(() -> linkCheckpointChunk(chunk)));
+            }
+            for (Future<?> future : linking) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not link checkpoint inodes", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("Loaded " + inodeStore.size() + " inodes from " + checkpoint.getName()
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private void indexCheckpointChunk(List<JournalRecord> records) {
+        for (JournalRecord record : records) {
+            Inode inode = record.getInode();
+            if (inode.getInodeNumber() == 0) {
+                inodeStore.get(0L).setSize(inode.getSize());
+                continue;
+            }
+            if (record.getType() == JournalRecord.Type.MKDIR) {
+                blockStore.put(inode.getBlockId(0), new DirBlock(inode.getBlockId(0)));
+            }
+            inodeStore.put(inode.getInodeNumber(), inode);
+        }
+    }
+
+    private void linkCheckpointChunk(List<JournalRecord> records) {
+        // Siblings are adjacent in a checkpoint, so they share the parent lookup.
+        Inode parent = null;
+        for (JournalRecord record : records) {
+            Inode inode = record.getInode();
+            if (inode.getInodeNumber() == 0) {
+                continue;
+            }
+            if (parent == null || parent.getInodeNumber() != record.getParentInodeNumber()) {
+                parent = inodeStore.get(record.getParentInodeNumber());
+            }
+            if (parent == null || parent.getFileType() != FileType.DIRECTORY) {
+                System.out.println("Dropping checkpoint inode without a parent: " + record.getAddress());
+                inodeStore.remove(inode.getInodeNumber());
+                continue;
+            }
+            inode.setParent(parent);
+            dirBlockOf(parent).addEntry(inode);
+        }
+    }
+
+    /** Applies a journal record to the namespace without journaling it again. */
+    private void apply(JournalRecord record) {
+        Inode existing;
+        switch (record.getType()) {
+            case CREATE_FILE:
+            case MKDIR:
+                Inode parent = inodeStore.get(record.getParentInodeNumber());
+                if (parent == null || parent.getFileType() != FileType.DIRECTORY) {
+                    System.out.println("Skipping journal record " + record.getSequence() + ": no parent for " + record.getAddress());
+                    return;
+                }
+                Inode inode = record.getInode();
+                existing = dirBlockOf(parent).lookup(inode.getName());
+                if (existing != null) {
+                    unlinkInode(parent, existing);
+                }
+                if (record.getType() == JournalRecord.Type.MKDIR) {
+                    // A directory's size is rebuilt as its children are linked back in.
+                    inode.setSize(0);
+                    blockStore.put(inode.getBlockId(0), new DirBlock(inode.getBlockId(0)));
+                }
+                linkInode(parent, inode);
+                break;
+            case DELETE:
+                existing = resolve(root, record.getAddress());
+                if (existing != null && existing.getParent() != null) {
+                    unlinkInode(existing.getParent(), existing);
+                    if (existing.getFileType() == FileType.DIRECTORY) {
+                        blockStore.remove(existing.getBlockId(0));
+                    }
+                }
+                break;
+            case SET_SIZE:
+                existing = resolve(root, record.getAddress());
+                if (existing != null) {
+                    existing.setSize(record.getSize());
+                }
+                break;
+        }
+    }
+
+    DirBlock dirBlockOf(Inode dir) {
+        return (DirBlock) blockStore.get(dir.getBlockId(0));
+    }
+
+    /**
+     * Resolves a path one component at a time through the directory entries, from the root if
+     * the path is absolute and from {@code start} otherwise. Returns null if a component doesn't
+     * exist or a component before the last isn't a directory. An absolute path's parent directory
+     * is looked up in the dentry cache first, so only its last component is walked on a hit.
+     */
+    Inode resolve(Inode start, String path) {
+        NameView name = LOOKUP_NAME.get();
+        int lastSlash = path.lastIndexOf('/');
+        if (dentryCache != null && lastSlash > 0 && path.charAt(0) == '/') {
+            Inode dir = dentryCache.get(path, lastSlash, name);
+            if (dir == null) {
+                long generation = dentryCache.generation();
+                dir = walk(root, path, 1, lastSlash, name);
+                if (dir == null || dir.getFileType() != FileType.DIRECTORY) {
+                    return null;
+                }
+                dentryCache.put(path.substring(0, lastSlash), dir, generation);
+            }
+            return walk(dir, path, lastSlash + 1, path.length(), name);
+        }
+        return walk(path.startsWith("/") ? root : start, path, 0, path.length(), name);
+    }
+
+    /** Walks the components of {@code path[start, end)}, reusing {@code name} as the lookup key. */
+    private Inode walk(Inode from, String path, int start, int end, NameView name) {
+        Inode cur = from;
+        while (start < end) {
+            int slash = path.indexOf('/', start);
+            if (slash < 0 || slash > end) {
+                slash = end;
+            }
+            int length = slash - start;
+            if (length == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+                if (cur.getParent() != null) {
+                    cur = cur.getParent();
+                }
+            } else if (length > 0 && !(length == 1 && path.charAt(start) == '.')) {
+                if (cur.getFileType() != FileType.DIRECTORY) {
+                    return null;
+                }
+                DirBlock dir = dirBlockOf(cur);
+                cur = dir == null ? null : dir.lookup(name.set(path, start, slash));
+                if (cur == null) {
+                    return null;
+                }
+            }
+            start = slash + 1;
+        }
+        return cur;
+    }
+
+    /** Adds the inode to the stores and to its parent directory. Callers hold the parent's write lock. */
+    private void linkInode(Inode parent, Inode inode) {
+        inode.setParent(parent);
+        inodeStore.put(inode.getInodeNumber(), inode);
+
+        parent.setSize(parent.getSize() + inode.getSize());
+        Inode replaced = dirBlockOf(parent).addEntry(inode);
+        if (replaced != null && replaced != inode && replaced.getFileType() == FileType.DIRECTORY) {
+            invalidateDentries();
+        }
+    }
+
+    private void unlinkInode(Inode parent, Inode inode) {
+        inodeStore.remove(inode.getInodeNumber());
+
+        parent.setSize(parent.getSize() - inode.getSize());
+        dirBlockOf(parent).removeEntry(inode);
+        if (inode.getFileType() == FileType.DIRECTORY) {
+            invalidateDentries();
+        }
+    }
+
+    private void invalidateDentries() {
+        if (dentryCache != null) {
+            dentryCache.invalidate();
+        }
+    }
+
+    private void logMutation(JournalRecord record) {
+        try {
+            journal.append(record);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write metadata journal", e);
+        }
+    }
+
+    private void maybeCheckpoint() {
+        maybeCheckpoint(1);
+    }
+
+    /** Writes a checkpoint once enough records have been journaled since the last one. */
+    /** Skips the checkpoint if one is being written; a later mutation takes it instead. */
+    private void maybeCheckpoint(long records) {
+        if (recordsSinceCheckpoint.addAndGet(records) < CHECKPOINT_INTERVAL || !checkpointWriter.tryLock()) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            checkpointWriter.unlock();
+        }
+    }
+
+    /**
+     * Writes the whole namespace as a checkpoint at the current journal sequence and deletes the
+     * journal files it makes obsolete. Mutations only wait while the image is encoded in memory.
+     */
+    public void checkpoint() throws IOException {
+        checkpointWriter.lock();
+        try {
+            long sequence;
+            List<byte[]> chunks;
+            checkpointLock.writeLock().lock();
+            try {
+                if (recordsSinceCheckpoint.get() == 0 && MetadataCheckpoint.findLatest(metadataDir) != null) {
+                    return;
+                }
+                sequence = journal.getLastSequence();
+                chunks = MetadataCheckpoint.encodeChunks(treeOrder(), sequence);
+                journal.roll();
+                recordsSinceCheckpoint.set(0);
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+
+            MetadataCheckpoint.write(metadataDir, sequence, chunks);
+            journal.deleteThrough(sequence);
+            System.out.println("Wrote metadata checkpoint at journal sequence " + sequence);
+        } finally {
+            checkpointWriter.unlock();
+        }
+    }
+
+    /**
+     * Lists the namespace depth first, so parents come before their children and siblings are
+     * adjacent, which lets the encoder front-code neighbouring addresses. Callers hold the
+     * checkpoint write lock, so no directory changes underneath.
+     */
+    private List<Inode> treeOrder() {
+        List<Inode> inodes = new ArrayList<>(inodeStore.size());
+        Deque<Inode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Inode inode = pending.pop();
+            inodes.add(inode);
+            if (inode.getFileType() == FileType.DIRECTORY) {
+                for (Iterator<Inode> children = dirBlockOf(inode).iterator(); children.hasNext(); ) {
+                    pending.push(children.next());
+                }
+            }
+        }
+        return inodes;
+    }
+
     private void selectServers() {
         Random random = new Random();
         int index1 = random.nextInt(SERVERS.size());
@@ -85,495 +436,953 @@ public class FileSystem {
         server2 = SERVERS.get(index2);
     }
 
-    private byte[] serializeMap(Object map) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(map);
-            return bos.toByteArray();
-        }
-    }
-
+    /**
+     * Brings both metadata replicas up to date. A replica whose position is known gets only the
+     * journal records after the position it acknowledged; a new replica, or one that has fallen
+     * behind the oldest journal file, gets the latest checkpoint first.
+     */
     public void writeToServer() throws IOException {
-        // Serialize the maps
-        byte[] blockStoreBytes = serializeMap(blockStore);
-        byte[] inodeStoreBytes = serializeMap(inodeStore);
-        byte[] inodeNameStoreBytes = serializeMap(inodeNameStore);
-
         System.out.println(server1 + ", " + server2);
-        // Store data on server1
-        sendDataToServer(server1, blockStoreBytes, inodeStoreBytes, inodeNameStoreBytes);
+        replicateTo(server1);
+        replicateTo(server2);
+    }
 
-        // Store data on server2
-        sendDataToServer(server2, blockStoreBytes, inodeStoreBytes, inodeNameStoreBytes);
+    private void replicateTo(String server) throws IOException {
+        Long acked = replicaPositions.get(server);
+        byte[] delta = acked == null ? null : journal.readSince(acked);
+        if (delta == null) {
+            File checkpoint = MetadataCheckpoint.findLatest(metadataDir);
+            long checkpointSequence = checkpoint == null ? 0 : MetadataCheckpoint.sequenceOf(checkpoint);
+            byte[] image = checkpoint == null ? new byte[0] : Files.readAllBytes(checkpoint.toPath());
+            if (!sendToReplica(server, "ckpt", checkpointSequence, image)) {
+                replicaPositions.remove(server);
+                return;
+            }
+            acked = checkpointSequence;
+            delta = journal.readSince(acked);
+            if (delta == null) {
+                // A newer checkpoint was written meanwhile; the next sync sends that one.
+                replicaPositions.remove(server);
+                return;
+            }
+        }
+
+        if (delta.length > 0) {
+            if (!sendToReplica(server, "jrnl", acked, delta)) {
+                replicaPositions.remove(server);
+                return;
+            }
+            acked = MetadataJournal.lastSequenceOf(delta);
+        }
+        replicaPositions.put(server, acked);
     }
 
-    private void sendDataToServer(String server, byte[] blockStoreBytes, byte[] inodeStoreBytes, byte[] inodeNameStoreBytes) throws IOException {
-        // Parse the server address and port
+    /**
+     * Sends a checkpoint ("ckpt") or journal delta ("jrnl") to a metadata replica. The position
+     * is the checkpoint's sequence, or the sequence the delta follows.
+     */
+    private boolean sendToReplica(String server, String cmd, long position, byte[] data) {
         String[] serverParts = server.split(":");
         String serverAddress = serverParts[0];
         int port = Integer.parseInt(serverParts[1]);
 
-        System.out.println("Storing data....");
+        System.out.println("Sending " + data.length + " bytes of metadata (" + cmd + ") to " + server);
 
-        // Open a socket connection to the server
         try (Socket socket = new Socket(serverAddress, port);
              DataOutputStream out = new DataOutputStream(socket.getOutputStream());
              DataInputStream dis = new DataInputStream(socket.getInputStream())) {
 
-            // Send the "store" command
-            out.writeBytes("store");
-            out.writeBytes(String.format("%20s", (Object) "blockStoreBytes".getBytes()));
-            out.writeBytes(String.format("%10d", blockStoreBytes.length));
-            out.write(blockStoreBytes);
+            out.writeBytes(String.format("%-5s", cmd));
+            out.writeBytes(String.format("%20d", position));
+            out.writeBytes(String.format("%10d", data.length));
+            out.write(data);
+            out.flush();
 
             byte[] responseBytes = new byte[7]; // "SUCCESS" or "ERROR"
             dis.readFully(responseBytes);
             String response = new String(responseBytes).trim();
             System.out.println(response);
-
-            out.writeBytes("store");
-            out.writeBytes(String.format("%20s", (Object) "inodeStoreBytes".getBytes()));
-            out.writeBytes(String.format("%10d", inodeStoreBytes.length));
-            out.write(inodeStoreBytes);
-
-            responseBytes = new byte[7]; // "SUCCESS" or "ERROR"
-            dis.readFully(responseBytes);
-            response = new String(responseBytes).trim();
-            System.out.println(response);
-
-            out.writeBytes("store");
-            out.writeBytes(String.format("%20s", (Object) "inodeNameStoreBytes".getBytes()));
-            out.writeBytes(String.format("%10d", inodeNameStoreBytes.length));
-            out.write(inodeNameStoreBytes);
-
-            responseBytes = new byte[7]; // "SUCCESS" or "ERROR"
-            dis.readFully(responseBytes);
-            response = new String(responseBytes).trim();
-            System.out.println(response);
-
-            // Optionally, handle responses from the server here
-        }  catch (IOException e) {
+            return response.equals("SUCCESS");
+        } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
+    /**
+     * Changes the current directory to a path that is absolute or relative to it, and may use
+     * "." and "..".
+     */
     public void changeDir(String newDirPath) throws LocationDoesNotExistException, InvalidFileTypeException {
-        Inode currentDir = curDir.get();
-        if (newDirPath.equals(".")) {
-            return;
-        } else if (newDirPath.equals("..")) {
-            if (currentDir.getInodeNumber() == 0) {
-                return;
-            } else {
-                String curPath = currentDir.getAddress();
-                String[] ogparts = curPath.split("/");
-                String[] parts = new String[ogparts.length - 1];
-                System.arraycopy(ogparts, 1, parts, 0, parts.length);
-
-                if (parts.length == 1) {
-                    String newPath = "/";
-                    lock.lock();
-                    try {
-                        if (inodeNameStore.containsKey(newPath)) {
-                            curDir.set(inodeNameStore.get(newPath));
-                        } else {
-                            throw new LocationDoesNotExistException("Path does not exist");
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-                    return;
-                }
-                StringBuilder newPathBuilder = new StringBuilder();
-                for (int i = 0; i < parts.length - 1; i++) {
-                    if (parts[i].isEmpty()) {
-                        continue;
-                    }
-                    newPathBuilder.append("/").append(parts[i]);
-                }
-                String newPath = newPathBuilder.toString();
-                lock.lock();
-                try {
-                    if (inodeNameStore.containsKey(newPath)) {
-                        curDir.set(inodeNameStore.get(newPath));
-                    } else {
-                        throw new LocationDoesNotExistException("Path does not exist");
-                    }
-                } finally {
-                    lock.unlock();
-                }
-            }
-        } else {
-            List<Long> curBlocks = currentDir.getBlockIds();
-            if (!curBlocks.isEmpty()) {
-                Inode curInode = null;
-                StringBuilder startPath;
-                if (currentDir.getInodeNumber() == 0) {
-                    startPath = new StringBuilder();
-                } else {
-                    startPath = new StringBuilder(currentDir.getAddress());
-                }
-                String[] parts = newDirPath.split("/");
-                for (String part : parts) {
-                    startPath.append("/").append(part);
-                    lock.lock();
-                    try {
-                        if (inodeNameStore.containsKey(startPath.toString())) {
-                            curInode = inodeNameStore.get(startPath.toString());
-                            if (curInode.getFileType() != FileType.DIRECTORY) {
-                                throw new InvalidFileTypeException("The path is not a directory");
-                            }
-                        } else {
-                            throw new LocationDoesNotExistException("Path does not exist");
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-                }
-                curDir.set(curInode);
-            } else {
-                throw new LocationDoesNotExistException("Path does not exist");
-            }
+        Inode target = resolve(curDir.get(), newDirPath);
+        if (target == null) {
+            throw new LocationDoesNotExistException("Path does not exist");
+        }
+        if (target.getFileType() != FileType.DIRECTORY) {
+            throw new InvalidFileTypeException("The path is not a directory");
         }
+        curDir.set(target);
     }
 
-    public static List<Block> splitBinaryData(byte[] data) {
-        List<Block> blocks = new ArrayList<>();
+    /**
+     * Splits the data into blocks with consecutive ids from {@code startBlockId} and starts
+     * uploading each one as soon as it is cut, so the uploads are pipelined instead of waiting a
+     * full round trip per block. The upload futures are added to {@code uploads} in block order.
+     */
+    public static List<FileBlock> splitBinaryData(byte[] data, int blockSize, long startBlockId, List<CompletableFuture<Boolean>> uploads) {
+        List<FileBlock> blocks = new ArrayList<>();
         int dataLength = data.length;
         int start = 0;
 
         while (start < dataLength) {
-            int end = Math.min(start + BLOCK_SIZE, dataLength);
+            int end = Math.min(start + blockSize, dataLength);
             int size = end - start;
             byte[] blockData = new byte[size];
             System.arraycopy(data, start, blockData, 0, size);
 
-            blocks.add(new FileBlock(blockData, size));
-            start += BLOCK_SIZE;
+            FileBlock block = new FileBlock(startBlockId + blocks.size(), size);
+            uploads.add(block.saveDataAsync(blockData));
+            blocks.add(block);
+            start += blockSize;
         }
 
         return blocks;
     }
 
-    // TODO: basic filename checks
-    public void createFile(String fileName, byte[] data) {
-        Transaction transaction = new Transaction();
-
-        List<Block> blocks = new ArrayList<>(splitBinaryData(data));
-        List<Long> blockIds = new ArrayList<>();
+    /** Returns the blocks described by the file's extents, in file order. */
+    static List<FileBlock> fileBlocks(Inode inode) {
+        List<FileBlock> blocks = new ArrayList<>(inode.getBlockCount());
+        for (Extent extent : inode.getExtents()) {
+            for (int i = 0; i < extent.getBlockCount(); i++) {
+                blocks.add(new FileBlock(extent.getBlockId(i), extent.getBlockLength(i, inode.getBlockSize())));
+            }
+        }
+        return blocks;
+    }
 
-        for (Block block: blocks) {
-            long blockID = block.getBlockID();
-            Runnable addBlock = () -> {
-                blockStoreLock.lock();
-                try {
-                    blockStore.put(blockID, block);
-                } finally {
-                    blockStoreLock.unlock();
-                }
-            };
+    private static void awaitUploads(List<CompletableFuture<Boolean>> uploads) {
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+        for (CompletableFuture<Boolean> upload : uploads) {
+            if (!upload.join()) {
+                throw new IllegalStateException("Failed to store file block");
+            }
+        }
+    }
 
-            Runnable removeBlock = () -> {
-                blockStoreLock.lock();
-                try {
-                    blockStore.remove(blockID);
-                } finally {
-                    blockStoreLock.unlock();
-                }
-            };
+    public int getBlockSize() {
+        return blockSize;
+    }
 
-            transaction.addOperation(addBlock, removeBlock);
-            blockIds.add(blockID);
-        }
+    public boolean createFile(String fileName, byte[] data) throws LocationDoesNotExistException, InvalidFileTypeException {
+        return createFile(fileName, data, blockSize);
+    }
 
-        String newAddr;
-        if (this.curDir.get().getInodeNumber() == 0) {
-            newAddr = "/" + fileName;
-        } else {
-            newAddr = this.curDir.get().getAddress() + "/" + fileName;
-        }
-        Date now = new Date();
-        Inode newInode;
+    /** Creates the file at {@code fileName}, a path whose parent directory must exist. */
+    public boolean createFile(String fileName, byte[] data, int fileBlockSize)
+            throws LocationDoesNotExistException, InvalidFileTypeException {
+        Block.checkBlockSize(fileBlockSize);
+        Inode parent = resolveParent(fileName);
+        String name = nameOf(fileName);
+        checkName(name);
+
+        // File blocks aren't kept in the block store; the inode's extent is enough to find them.
+        int blockCount = (int) ((data.length + (long) fileBlockSize - 1) / fileBlockSize);
+        long startBlockId = Block.allocateBlockIds(blockCount);
+        List<CompletableFuture<Boolean>> uploads = new ArrayList<>();
+        List<FileBlock> blocks = splitBinaryData(data, fileBlockSize, startBlockId, uploads);
+        return addFile(parent, name, data.length, fileBlockSize, startBlockId, blockCount, uploads, blocks);
+    }
 
-        List<Block> oldBlocks = new ArrayList<>();
+    public boolean createFile(String fileName, InputStream data, long length)
+            throws IOException, LocationDoesNotExistException, InvalidFileTypeException {
+        return createFile(fileName, data, length, blockSize);
+    }
 
+    /**
+     * Creates a file from {@code length} bytes of the stream, cutting and uploading each block as
+     * soon as it has been read. At most WRITE_FAN_OUT uploads are in flight, so only that many
+     * blocks are held in memory however large the file is. Returns false if a block could not be
+     * stored; the stream may then be left part way. Whatever was stored is freed again if the file
+     * isn't created.
+     */
+    public boolean createFile(String fileName, InputStream data, long length, int fileBlockSize)
+            throws IOException, LocationDoesNotExistException, InvalidFileTypeException {
+        Block.checkBlockSize(fileBlockSize);
+        Inode parent = resolveParent(fileName);
+        String name = nameOf(fileName);
+        checkName(name);
+
+        int blockCount = (int) ((length + fileBlockSize - 1) / fileBlockSize);
+        long startBlockId = Block.allocateBlockIds(blockCount);
+        List<CompletableFuture<Boolean>> uploads = new ArrayList<>(blockCount);
+        List<FileBlock> blocks = new ArrayList<>(blockCount);
+        long remaining = length;
         try {
-            inodeNameStoreLock.lock();
-            if (inodeNameStore.containsKey(newAddr)) {
-                newInode = inodeNameStore.get(newAddr);
-                List<Long> oldBlockIds = new ArrayList<>(newInode.getBlockIds());
-                for (Long blockId: oldBlockIds) {
-                    
+            for (int i = 0; i < blockCount; i++) {
+                if (i >= WRITE_FAN_OUT && !uploads.get(i - WRITE_FAN_OUT).join()) {
+                    freeBlocks(blocks);
+                    return false;
                 }
-            } else {
-                newInode = new Inode(userName, group, newAddr, blocks.size() * 1000L, FileType.FILE, now, now, now, Block.generateRandomBlockID(), blockIds);
+                int size = (int) Math.min(fileBlockSize, remaining);
+                byte[] blockData = data.readNBytes(size);
+                if (blockData.length < size) {
+                    throw new EOFException("File data ended " + (remaining - blockData.length) + " bytes early");
+                }
+                FileBlock block = new FileBlock(startBlockId + i, size);
+                uploads.add(block.saveDataAsync(blockData));
+                blocks.add(block);
+                remaining -= size;
             }
-        } finally {
-            inodeNameStoreLock.unlock();
+        } catch (IOException | RuntimeException e) {
+            freeBlocks(blocks);
+            throw e;
         }
+        return addFile(parent, name, length, fileBlockSize, startBlockId, blockCount, uploads, blocks);
+    }
 
-        long inodeNumber = newInode.getInodeNumber();
+    /**
+     * Links the file into {@code parent} once every upload has succeeded. If the transaction
+     * fails the uploaded blocks are freed.
+     */
+    private boolean addFile(Inode parent, String fileName, long length, int fileBlockSize, long startBlockId, int blockCount,
+                            List<CompletableFuture<Boolean>> uploads, List<FileBlock> blocks) {
+        Transaction transaction = new Transaction();
+        Extent[] extents = blockCount == 0 ? new Extent[0] : new Extent[] {new Extent(startBlockId, blockCount, length)};
 
-        Runnable addInode = () -> {
-            inodeStoreLock.lock();
-            inodeNameStoreLock.lock();
-            curDirLock.lock();
+        // The inode is only added once every block is stored.
+        transaction.addOperation(() -> awaitUploads(uploads), () -> freeBlocks(blocks));
 
-            try {
-                inodeStore.put(inodeNumber, newInode);
-                inodeNameStore.put(newAddr, newInode);
+        Inode newInode = newInode(fileName, length, FileType.FILE, extents);
+        newInode.setBlockSize(fileBlockSize);
+        List<FileBlock> replacedBlocks = new ArrayList<>();
+        addInodeOperation(transaction, parent, newInode, replacedBlocks);
 
-                Inode curDirInode = curDir.get();
-                curDirInode.setSize(curDirInode.getSize() + newInode.getSize());
-                DirBlock curDirBlock = (DirBlock) blockStore.get(curDirInode.getBlockIds().getFirst());
-                curDirBlock.addInode(newInode);
+        if (transactionManager.executeTransaction(transaction)) {
+            maybeCheckpoint();
+            freeBlocks(replacedBlocks);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the step that journals the new inode and then links it into its parent, replacing a
+     * file of the same name. A directory on either side of the name, or a parent removed since it
+     * was resolved, fails the step. The blocks of
+     * a replaced file are added to {@code replacedBlocks}, to be freed once the transaction commits.
+     */
+    private void addInodeOperation(Transaction transaction, Inode parent, Inode newInode, List<FileBlock> replacedBlocks) {
+        Lock dirLock = dirLocks.get(parent.getInodeNumber()).writeLock();
+        Inode[] replaced = new Inode[1];
+        boolean[] linked = new boolean[1];
+
+        Runnable addInode = () -> {
+            checkpointLock.readLock().lock();
+            dirLock.lock();
+            try {
+                if (!isLinked(parent)) {
+                    throw new IllegalStateException(parent.getName() + " was removed");
+                }
+                Inode existing = dirBlockOf(parent).lookup(newInode.getName());
+                if (existing != null
+                        && (existing.getFileType() == FileType.DIRECTORY || newInode.getFileType() == FileType.DIRECTORY)) {
+                    throw new IllegalStateException(newInode.getName() + " already exists");
+                }
+                newInode.setParent(parent);
+                logMutation(JournalRecord.create(newInode));
+                if (existing != null) {
+                    unlinkInode(parent, existing);
+                    replaced[0] = existing;
+                    replacedBlocks.addAll(fileBlocks(existing));
+                }
+                linkInode(parent, newInode);
+                linked[0] = true;
             } finally {
-                inodeStoreLock.unlock();
-                inodeNameStoreLock.unlock();
-                curDirLock.unlock();
+                dirLock.unlock();
+                checkpointLock.readLock().unlock();
             }
         };
 
         Runnable removeInode = () -> {
-            inodeStoreLock.lock();
-            inodeNameStoreLock.lock();
-            curDirLock.lock();
-
+            if (!linked[0]) {
+                return;
+            }
+            dirLock.lock();
             try {
-                inodeStore.remove(inodeNumber);
-                inodeNameStore.remove(newAddr);
-
-                Inode curDirInode = curDir.get();
-                curDirInode.setSize(curDirInode.getSize() - newInode.getSize());
-                DirBlock curDirBlock = (DirBlock) blockStore.get(curDirInode.getBlockIds().getFirst());
-                curDirBlock.removeInode(newInode.getInodeNumber());
+                unlinkInode(parent, newInode);
+                if (replaced[0] != null) {
+                    linkInode(parent, replaced[0]);
+                }
             } finally {
-                inodeStoreLock.unlock();
-                inodeNameStoreLock.unlock();
-                curDirLock.unlock();
+                dirLock.unlock();
             }
         };
 
         transaction.addOperation(addInode, removeInode);
-
-        transactionManager.executeTransaction(transaction);
     }
 
     public void deleteFile(String fileName) throws LocationDoesNotExistException, InvalidFileTypeException {
+        List<FileBlock> removedBlocks = new ArrayList<>();
+        Inode parent = resolveParent(fileName);
+        String name = nameOf(fileName);
+        checkName(name);
+        Lock dirLock = dirLocks.get(parent.getInodeNumber()).writeLock();
+        checkpointLock.readLock().lock();
+        dirLock.lock();
         try {
-            blockStoreLock.lock();
-            inodeStoreLock.lock();
-            curDirLock.lock();
-            inodeNameStoreLock.lock();
-
-            String newAddr;
-            if (this.curDir.get().getInodeNumber() == 0) {
-                newAddr = "/" + fileName;
-            } else {
-                newAddr = this.curDir.get().getAddress() + "/" + fileName;
-            }
-            if (inodeNameStore.containsKey(newAddr)) {
-                Inode inode = inodeNameStore.get(newAddr);
+            Inode inode = isLinked(parent) ? dirBlockOf(parent).lookup(name) : null;
+            if (inode != null) {
                 if (inode.getFileType() == FileType.DIRECTORY) {
                     throw new InvalidFileTypeException("Not a file");
                 }
-                List<Long> blockIds = inode.getBlockIds();
-                for (Long blockId: blockIds) {
-                    blockStore.remove(blockId);
-                }
-                inodeNameStore.remove(newAddr);
-                inodeStore.remove(inode.getInodeNumber());
-
-                DirBlock curDirBlock = (DirBlock) this.blockStore.get(this.curDir.get().getBlockIds().getFirst());
-                curDirBlock.removeInode(inode.getInodeNumber());
-                this.curDir.get().setSize(this.curDir.get().getSize() - 1);
+                logMutation(JournalRecord.delete(inode.getAddress()));
+                removedBlocks.addAll(fileBlocks(inode));
+                unlinkInode(parent, inode);
 
             } else {
                 throw new LocationDoesNotExistException("File does not exist");
             }
 
         } finally {
-            blockStoreLock.unlock();
-            inodeStoreLock.unlock();
-            curDirLock.unlock();
-            inodeNameStoreLock.unlock();
+            dirLock.unlock();
+            checkpointLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+
+        // Freeing the data on the block servers happens outside the locks and doesn't hold up the caller.
+        for (FileBlock block : removedBlocks) {
+            block.deleteDataAsync().thenAccept(deleted -> {
+                if (!deleted) {
+                    System.out.println("Failed to delete block " + block.getBlockID());
+                }
+            });
         }
     }
 
-    public void createDir(String dirName) {
+    /**
+     * Creates the directory at {@code dirName}, a path whose parent directory must exist. Returns
+     * false if it wasn't created, such as when the name is already taken.
+     */
+    public boolean createDir(String dirName) throws LocationDoesNotExistException, InvalidFileTypeException {
         Transaction transaction = new Transaction();
 
-        List<Long> newBlocks = new ArrayList<>();
-        String curPath = curDir.get().getAddress();
-        String newPath;
-        if (curDir.get().getInodeNumber() == 0) {
-            newPath = curPath + dirName;
-        } else {
-            newPath = curPath + "/" + dirName;
-        }
-        Date now = new Date();
+        Inode parent = resolveParent(dirName);
+        String name = nameOf(dirName);
+        checkName(name);
 
         DirBlock block = new DirBlock();
         long blockID = block.getBlockID();
-        Runnable addBlock = () -> {
-            blockStoreLock.lock();
-            try {
-                blockStore.put(blockID, block);
-            } finally {
-                blockStoreLock.unlock();
-            }
-        };
-
-        Runnable removeBlock = () -> {
-            blockStoreLock.lock();
-            try {
-                blockStore.remove(blockID);
-            } finally {
-                blockStoreLock.unlock();
-            }
-        };
+        Runnable addBlock = () -> blockStore.put(blockID, block);
+        Runnable removeBlock = () -> blockStore.remove(blockID);
 
         transaction.addOperation(addBlock, removeBlock);
-        newBlocks.add(block.getBlockID());
 
-        Inode newInode = new Inode(userName, group, newPath, 0, FileType.DIRECTORY, now, now, now, Block.generateRandomBlockID(), newBlocks);
-        long inodeNumber = newInode.getInodeNumber();
+        Inode newInode = newInode(name, 0, FileType.DIRECTORY, new Extent(blockID, 1, 0));
+        addInodeOperation(transaction, parent, newInode, new ArrayList<>());
 
-        Runnable addInode = () -> {
-            inodeStoreLock.lock();
-            inodeNameStoreLock.lock();
-            curDirLock.lock();
+        if (transactionManager.executeTransaction(transaction)) {
+            maybeCheckpoint();
+            return true;
+        }
+        return false;
+    }
 
-            try {
-                inodeStore.put(inodeNumber, newInode);
-                inodeNameStore.put(newPath, newInode);
+    /**
+     * Whether {@code name} can name a directory entry. Journal replay finds entries by address,
+     * so a name must be a single path component: not empty, "." or "..", and without a '/'.
+     */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('/') < 0;
+    }
 
-                Inode curDirInode = curDir.get();
-                curDirInode.setSize(curDirInode.getSize() + newInode.getSize());
-                DirBlock dirBlock = (DirBlock) blockStore.get(curDirInode.getBlockIds().getFirst());
-                dirBlock.addInode(newInode);
-            } finally {
-                inodeStoreLock.unlock();
-                inodeNameStoreLock.unlock();
-                curDirLock.unlock();
-            }
-        };
+    private static void checkName(String name) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Not a valid name: " + name);
+        }
+    }
 
-        Runnable removeInode = () -> {
-            inodeStoreLock.lock();
-            inodeNameStoreLock.lock();
-            curDirLock.lock();
+    /**
+     * The directory the last component of {@code path} is created in or removed from: the current
+     * directory if the path has no '/', else the path up to the last '/', resolved like any other.
+     */
+    private Inode resolveParent(String path) throws LocationDoesNotExistException, InvalidFileTypeException {
+        int slash = path.lastIndexOf('/');
+        if (slash < 0) {
+            return curDir.get();
+        }
+        String parentPath = slash == 0 ? "/" : path.substring(0, slash);
+        Inode parent = resolve(curDir.get(), parentPath);
+        if (parent == null) {
+            throw new LocationDoesNotExistException("Path does not exist: " + parentPath);
+        }
+        if (parent.getFileType() != FileType.DIRECTORY) {
+            throw new InvalidFileTypeException(parentPath + " is not a directory");
+        }
+        return parent;
+    }
 
-            try {
-                inodeStore.remove(inodeNumber);
-                inodeNameStore.remove(newPath);
+    /** The last component of a path, which names its entry in the parent directory. */
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
 
-                Inode curDirInode = curDir.get();
-                curDirInode.setSize(curDirInode.getSize() - newInode.getSize());
-                DirBlock dirBlock = (DirBlock) blockStore.get(curDirInode.getBlockIds().getFirst());
-                dirBlock.removeInode(newInode.getInodeNumber());
-            } finally {
-                inodeStoreLock.unlock();
-                inodeNameStoreLock.unlock();
-                curDirLock.unlock();
-            }
-        };
+    /**
+     * Whether the directory is still in the namespace. Callers hold its write lock, which a
+     * removal of the directory also takes, so it can't be removed while they add to it.
+     */
+    private boolean isLinked(Inode dir) {
+        return inodeStore.get(dir.getInodeNumber()) == dir;
+    }
 
-        transaction.addOperation(addInode, removeInode);
+    /** A new inode owned by this file system's user, with a fresh inode number. */
+    Inode newInode(String name, long size, FileType fileType, Extent... extents) {
+        checkName(name);
+        Date now = new Date();
+        return new Inode(userName, group, name, size, fileType, now, now, now, IdAllocator.getInodeIds().next(), extents);
+    }
 
-        transactionManager.executeTransaction(transaction);
+    public boolean applyBatch(List<BatchOperation> operations)
+            throws LocationDoesNotExistException, InvalidFileTypeException, LocationAlreadyExistsException {
+        return applyBatch(operations, blockSize);
     }
 
-    private void dfs(Inode inpInode, int tabs) {
-        for (int i = 0; i < tabs; i++) {
-            System.out.print("\t");
+    /**
+     * Applies the operations in order as one transaction, so either all of them take effect or
+     * none do. The file data is uploaded first, packed into as few Raft submissions as fit (see
+     * {@link FileBlock#submitAll(List)}). The namespace changes are then made holding each
+     * affected directory's write lock once, journaled in a single write before they are applied. An operation that
+     * can't be applied is reported before anything is uploaded. Returns false if the uploads or
+     * the journal write failed.
+     */
+    public boolean applyBatch(List<BatchOperation> operations, int fileBlockSize)
+            throws LocationDoesNotExistException, InvalidFileTypeException, LocationAlreadyExistsException {
+        Block.checkBlockSize(fileBlockSize);
+        Inode cwd = curDir.get();
+
+        int blockCount = 0;
+        for (BatchOperation operation : operations) {
+            if (operation.getType() == BatchOperation.Type.CREATE_FILE) {
+                blockCount += (int) ((operation.getData().length + (long) fileBlockSize - 1) / fileBlockSize);
+            }
         }
-        String addr = inpInode.getAddress();
-        String[] parts = addr.split("/");
-        if (parts.length > 0) {
-            if (inpInode.getFileType() == FileType.DIRECTORY) {
-                addr = "/" + parts[parts.length - 1];
-            } else {
-                addr = parts[parts.length - 1];
+        long nextBlockId = Block.allocateBlockIds(blockCount);
+        Extent[][] extents = new Extent[operations.size()][];
+        List<BlockMessage> stores = new ArrayList<>(blockCount);
+        List<FileBlock> uploaded = new ArrayList<>(blockCount);
+        for (int i = 0; i < operations.size(); i++) {
+            if (operations.get(i).getType() != BatchOperation.Type.CREATE_FILE) {
+                continue;
             }
-        } else {
-            addr = "/";
+            byte[] data = operations.get(i).getData();
+            int count = (int) ((data.length + (long) fileBlockSize - 1) / fileBlockSize);
+            extents[i] = count == 0 ? new Extent[0] : new Extent[] {new Extent(nextBlockId, count, data.length)};
+            for (int b = 0; b < count; b++) {
+                int from = b * fileBlockSize;
+                byte[] blockData = count == 1 ? data : Arrays.copyOfRange(data, from, Math.min(from + fileBlockSize, data.length));
+                stores.add(BlockMessage.store(nextBlockId + b, blockData));
+                uploaded.add(new FileBlock(nextBlockId + b, blockData.length));
+            }
+            nextBlockId += count;
         }
-        System.out.println(addr);
-        if (inpInode.getFileType() == FileType.FILE) {
-            return;
-        } else {
-            lock.lock();
+
+        // Rejects a batch that doesn't apply before anything is uploaded.
+        Map<String, Inode> newDirs = new HashMap<>();
+        new BatchPlan(this, root, cwd, operations, extents, fileBlockSize, newDirs);
+        List<CompletableFuture<Boolean>> uploads = FileBlock.submitAll(stores);
+
+        Transaction transaction = new Transaction();
+        transaction.addOperation(() -> awaitUploads(uploads), () -> freeBlocks(uploaded));
+        List<BatchPlan.Step> applied = new ArrayList<>();
+        Map<Long, Block> removedDirBlocks = new HashMap<>();
+        List<FileBlock> removedBlocks = new ArrayList<>();
+        transaction.addOperation(
+                () -> applyPlan(cwd, operations, extents, fileBlockSize, newDirs, applied, removedDirBlocks, removedBlocks),
+                () -> revertPlan(applied, removedDirBlocks));
+        if (!transactionManager.executeTransaction(transaction)) {
+            return false;
+        }
+        maybeCheckpoint(applied.size());
+        freeBlocks(removedBlocks);
+        return true;
+    }
+
+    /**
+     * Plans the batch again under the write locks of the directories it changes, taking more
+     * locks and planning again if concurrent changes made it reach other directories, then
+     * journals the steps in one write and applies them.
+     */
+    private void applyPlan(Inode cwd, List<BatchOperation> operations, Extent[][] extents, int fileBlockSize,
+                           Map<String, Inode> newDirs, List<BatchPlan.Step> applied, Map<Long, Block> removedDirBlocks, List<FileBlock> removedBlocks) {
+        checkpointLock.readLock().lock();
+        List<Lock> locks = Collections.emptyList();
+        try {
+            Set<Long> locked = Collections.emptySet();
+            BatchPlan plan;
+            while (true) {
+                try {
+                    plan = new BatchPlan(this, root, cwd, operations, extents, fileBlockSize, newDirs);
+                } catch (LocationDoesNotExistException | InvalidFileTypeException | LocationAlreadyExistsException e) {
+                    throw new IllegalStateException("Batch no longer applies: " + e.getMessage(), e);
+                }
+                if (locked.containsAll(plan.getDirectories())) {
+                    break;
+                }
+                DirectoryLocks.unlockAll(locks);
+                locked = new HashSet<>(plan.getDirectories());
+                locks = dirLocks.writeLockAll(locked.stream().mapToLong(Long::longValue).toArray());
+            }
+
+            List<JournalRecord> records = new ArrayList<>(plan.getSteps().size());
+            for (BatchPlan.Step step : plan.getSteps()) {
+                if (step.link) {
+                    step.inode.setParent(step.parent);
+                    records.add(JournalRecord.create(step.inode));
+                } else {
+                    records.add(JournalRecord.delete(step.inode.getAddress()));
+                }
+            }
             try {
-                if (blockStore.containsKey(inpInode.getBlockIds().getFirst())) {
-                    DirBlock block = (DirBlock) blockStore.get(inpInode.getBlockIds().getFirst());
-                    Map<Long, Inode> inodeMap = new HashMap<>(block.getInodeMap());
-                    Set<Long> keySet = inodeMap.keySet();
-                    for (Long key : keySet) {
-                        Inode inode = inodeMap.get(key);
-                        dfs(inode, tabs + 1);
+                journal.appendAll(records);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write metadata journal", e);
+            }
+
+            for (BatchPlan.Step step : plan.getSteps()) {
+                long dirBlockId = step.inode.getFileType() == FileType.DIRECTORY ? step.inode.getBlockId(0) : -1;
+                if (step.link) {
+                    if (dirBlockId >= 0) {
+                        blockStore.put(dirBlockId, new DirBlock(dirBlockId));
+                    }
+                    linkInode(step.parent, step.inode);
+                } else {
+                    unlinkInode(step.parent, step.inode);
+                    if (dirBlockId >= 0) {
+                        removedDirBlocks.put(dirBlockId, blockStore.remove(dirBlockId));
                     }
                 }
-            } finally {
-                lock.unlock();
+                applied.add(step);
+            }
+            removedBlocks.addAll(plan.getRemovedBlocks());
+        } finally {
+            DirectoryLocks.unlockAll(locks);
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /** Undoes the applied steps of a batch in reverse order. */
+    private void revertPlan(List<BatchPlan.Step> applied, Map<Long, Block> removedDirBlocks) {
+        Set<Long> dirs = new HashSet<>();
+        for (BatchPlan.Step step : applied) {
+            dirs.add(step.parent.getInodeNumber());
+        }
+        checkpointLock.readLock().lock();
+        List<Lock> locks = dirLocks.writeLockAll(dirs.stream().mapToLong(Long::longValue).toArray());
+        try {
+            for (int i = applied.size() - 1; i >= 0; i--) {
+                BatchPlan.Step step = applied.get(i);
+                long dirBlockId = step.inode.getFileType() == FileType.DIRECTORY ? step.inode.getBlockId(0) : -1;
+                if (step.link) {
+                    unlinkInode(step.parent, step.inode);
+                    if (dirBlockId >= 0) {
+                        blockStore.remove(dirBlockId);
+                    }
+                } else {
+                    if (dirBlockId >= 0) {
+                        blockStore.put(dirBlockId, removedDirBlocks.get(dirBlockId));
+                    }
+                    linkInode(step.parent, step.inode);
+                }
             }
+        } finally {
+            DirectoryLocks.unlockAll(locks);
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /** Deletes the blocks from the block servers in batches, without holding up the caller. */
+    private static void freeBlocks(List<FileBlock> blocks) {
+        List<BlockMessage> deletes = new ArrayList<>(blocks.size());
+        for (FileBlock block : blocks) {
+            deletes.add(BlockMessage.delete(block.getBlockID()));
+        }
+        for (CompletableFuture<Boolean> submission : FileBlock.submitAll(deletes)) {
+            submission.thenAccept(deleted -> {
+                if (!deleted) {
+                    System.out.println("Failed to delete a batch of blocks");
+                }
+            });
+        }
+    }
+
+    /**
+     * Lists up to {@code limit} entries of a directory that come after {@code afterName} (null
+     * for the first page) in directory order. Passing the last name of a full page returns the
+     * next page, even if entries were added or removed in between.
+     */
+    public List<Inode> listDir(String path, String afterName, int limit) throws LocationDoesNotExistException, InvalidFileTypeException {
+        Inode dir = resolve(curDir.get(), path);
+        if (dir == null) {
+            throw new LocationDoesNotExistException("Path does not exist");
+        }
+        if (dir.getFileType() != FileType.DIRECTORY) {
+            throw new InvalidFileTypeException("The path is not a directory");
         }
+        return listPage(dir, afterName, limit);
     }
 
-    public String tree() {
-        dfs(inodeStore.get(0L), 0);
-        return "blah";
+    /** Reads one page of the directory under its read lock, so the page matches a single state. */
+    private List<Inode> listPage(Inode dir, String afterName, int limit) {
+        Lock dirLock = dirLocks.get(dir.getInodeNumber()).readLock();
+        dirLock.lock();
+        try {
+            DirBlock block = dirBlockOf(dir);
+            return block == null ? Collections.emptyList() : block.list(afterName, limit);
+        } finally {
+            dirLock.unlock();
+        }
+    }
+
+    /**
+     * Walks the tree under {@code path} lazily, down to {@code maxDepth} levels below it,
+     * resuming after {@code pageToken} if it is not null. See {@link TreeWalker}.
+     */
+    public TreeWalker walk(String path, int maxDepth, String pageToken) throws LocationDoesNotExistException, InvalidFileTypeException {
+        Inode start = resolve(curDir.get(), path);
+        if (start == null) {
+            throw new LocationDoesNotExistException("Path does not exist");
+        }
+        if (start.getFileType() != FileType.DIRECTORY) {
+            throw new InvalidFileTypeException("The path is not a directory");
+        }
+        return new TreeWalker(this, start, maxDepth, pageToken);
     }
 
     public void printCurrentDir() {
         System.out.println(this.curDir.get().getAddress());
     }
 
-    public byte[] readFile(String fileName) throws LocationDoesNotExistException {
-        byte[] data = null;
-        List<Byte> bytes = new ArrayList<>();
+    /** Snapshots the block list of the file at the path under its directory's read lock. */
+    private List<FileBlock> blocksOf(String fileName) throws LocationDoesNotExistException, InvalidFileTypeException {
+        Inode inode = resolveFile(fileName);
+        Inode parent = inode.getParent();
+        Lock dirLock = dirLocks.get(parent == null ? 0 : parent.getInodeNumber()).readLock();
+        dirLock.lock();
         try {
-            blockStoreLock.lock();
-            inodeStoreLock.lock();
-            inodeNameStoreLock.lock();
-            curDirLock.lock();
-
-            String newAddr;
-            if (this.curDir.get().getInodeNumber() == 0) {
-                newAddr = "/" + fileName;
-            } else {
-                newAddr = this.curDir.get().getAddress() + "/" + fileName;
+            return fileBlocks(inode);
+        } finally {
+            dirLock.unlock();
+        }
+    }
+
+    public byte[] readFile(String fileName) throws LocationDoesNotExistException, InvalidFileTypeException {
+        // The block list is a snapshot, so the network fetches run without holding any directory lock.
+        List<FileBlock> blocks = blocksOf(fileName);
+        long totalSize = 0;
+        for (FileBlock block : blocks) {
+            totalSize += block.getSize();
+        }
+        if (totalSize > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        byte[] data = new byte[(int) totalSize];
+        int offset = 0;
+        Iterator<byte[]> blockData = blockReader.stream(blocks);
+        for (FileBlock block : blocks) {
+            byte[] curData = blockData.next();
+            if (curData == null || curData.length < block.getSize()) {
+                return null;
             }
+            System.arraycopy(curData, 0, data, offset, block.getSize());
+            offset += block.getSize();
+        }
+
+        return data;
+    }
+
+    /**
+     * Writes the file to {@code out} block by block as the prefetched blocks arrive, so files
+     * of any size are sent without being assembled in memory. Throws if a block can't be
+     * fetched, after the blocks before it have been written.
+     */
+    public void readFile(String fileName, OutputStream out)
+            throws LocationDoesNotExistException, InvalidFileTypeException, IOException {
+        List<FileBlock> blocks = blocksOf(fileName);
+        Iterator<byte[]> blockData = blockReader.stream(blocks);
+        for (FileBlock block : blocks) {
+            byte[] curData = blockData.next();
+            if (curData == null || curData.length < block.getSize()) {
+                throw new IOException("Could not read block " + block.getBlockID());
+            }
+            out.write(curData, 0, block.getSize());
+        }
+    }
+
+    /**
+     * Returns up to {@code length} bytes of the file from {@code offset}, fewer at the end of
+     * the file. A negative offset counts back from the end, so {@code read(path, -n, n)} is the
+     * last n bytes. Only the blocks covering the range are fetched.
+     */
+    public byte[] read(String path, long offset, int length)
+            throws LocationDoesNotExistException, InvalidFileTypeException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        read(path, offset, length, out);
+        return out.toByteArray();
+    }
+
+    /** Like {@link #read(String, long, int)}, writing the range to {@code out} block by block. */
+    public void read(String path, long offset, long length, OutputStream out)
+            throws LocationDoesNotExistException, InvalidFileTypeException, IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative");
+        }
+        Inode inode = resolveFile(path);
+        List<FileBlock> blocks;
+        Inode parent = inode.getParent();
+        Lock dirLock = dirLocks.get(parent == null ? 0 : parent.getInodeNumber()).readLock();
+        dirLock.lock();
+        try {
+            long size = inode.getSize();
+            if (offset < 0) {
+                offset = Math.max(0, size + offset);
+            }
+            long end = Math.min(size, offset + Math.min(length, Long.MAX_VALUE - offset));
+            if (offset >= end) {
+                return;
+            }
+            length = end - offset;
+            blocks = blocksIn(inode, size, offset, end);
+        } finally {
+            dirLock.unlock();
+        }
+
+        // Bytes to skip in the first block.
+        int skip = (int) (offset % inode.getBlockSize());
+        Iterator<byte[]> blockData = blockReader.stream(blocks);
+        for (FileBlock block : blocks) {
+            byte[] curData = blockData.next();
+            if (curData == null || curData.length < block.getSize()) {
+                throw new IOException("Could not read block " + block.getBlockID());
+            }
+            int count = (int) Math.min(block.getSize() - skip, length);
+            out.write(curData, skip, count);
+            length -= count;
+            skip = 0;
+        }
+    }
 
-            if (inodeNameStore.containsKey(newAddr)) {
-                Inode fileInode = inodeStore.get(inodeNameStore.get(newAddr).getInodeNumber());
-                List<Long> blockIds = new ArrayList<>(fileInode.getBlockIds());
-                for (Long blockId : blockIds) {
-                    FileBlock block = (FileBlock) blockStore.get(blockId);
-                    byte[] curData = block.getData();
-                    for (byte b : curData) {
-                        bytes.add(b);
+    /**
+     * The blocks holding bytes {@code from} to {@code to} (exclusive) of a file of the given
+     * size, in file order. Each is found by offset with {@link Inode#getBlockIdAt(long)}; every
+     * block but the last is full, so block boundaries are multiples of the block size.
+     */
+    private static List<FileBlock> blocksIn(Inode inode, long size, long from, long to) {
+        int fileBlockSize = inode.getBlockSize();
+        List<FileBlock> blocks = new ArrayList<>();
+        for (long blockStart = from - from % fileBlockSize; blockStart < to; blockStart += fileBlockSize) {
+            blocks.add(new FileBlock(inode.getBlockIdAt(blockStart), (int) Math.min(fileBlockSize, size - blockStart)));
+        }
+        return blocks;
+    }
+
+    private Inode resolveFile(String path) throws LocationDoesNotExistException, InvalidFileTypeException {
+        Inode inode = resolve(curDir.get(), path);
+        if (inode == null) {
+            throw new LocationDoesNotExistException("File does not exist: " + path);
+        }
+        if (inode.getFileType() != FileType.FILE) {
+            throw new InvalidFileTypeException(path + " is not a file");
+        }
+        return inode;
+    }
+
+    /** Appends the data to the end of the file; see {@link #write(String, long, byte[])}. */
+    public boolean append(String path, byte[] data) throws LocationDoesNotExistException, InvalidFileTypeException {
+        return writeRange(path, -1, data);
+    }
+
+    /**
+     * Writes the data into the file at {@code offset}, growing it if the data runs past the
+     * end; writing beyond the end fills the gap with zeros. Only the blocks the range touches
+     * are stored again, a partly covered block after fetching its current contents, and
+     * blocks past the old end are added as a new extent. Returns false if a block could not
+     * be stored or the new size could not be journaled; the file then keeps its old size, but
+     * like a failed write(2) the range may be partly overwritten.
+     */
+    public boolean write(String path, long offset, byte[] data) throws LocationDoesNotExistException, InvalidFileTypeException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        return writeRange(path, offset, data);
+    }
+
+    /** Writes at {@code offset}, or at the end of the file if it is -1. */
+    private boolean writeRange(String path, long offset, byte[] data) throws LocationDoesNotExistException, InvalidFileTypeException {
+        Inode inode = resolveFile(path);
+        Lock contentLock = contentLocks.get(inode.getInodeNumber()).writeLock();
+        contentLock.lock();
+        try {
+            long size = inode.getSize();
+            long start = offset < 0 ? size : offset;
+            if (start > size) {
+                byte[] padded = new byte[Math.toIntExact(start - size + data.length)];
+                System.arraycopy(data, 0, padded, (int) (start - size), data.length);
+                data = padded;
+                start = size;
+            }
+            if (data.length == 0) {
+                return true;
+            }
+            int fileBlockSize = inode.getBlockSize();
+            long end = start + data.length;
+            long newSize = Math.max(size, end);
+            // Bytes the existing blocks hold when full; only the last one may be partly filled.
+            long capacity = (size + fileBlockSize - 1) / fileBlockSize * fileBlockSize;
+
+            List<BlockMessage> stores = new ArrayList<>();
+            List<FileBlock> rewritten = new ArrayList<>();
+            if (start < capacity) {
+                List<FileBlock> touched = blocksIn(inode, size, start, Math.min(end, capacity));
+                long firstBlockStart = start - start % fileBlockSize;
+                for (int i = 0; i < touched.size(); i++) {
+                    FileBlock block = touched.get(i);
+                    long blockStart = firstBlockStart + (long) i * fileBlockSize;
+                    int newLength = (int) Math.min(fileBlockSize, newSize - blockStart);
+                    int from = (int) Math.max(0, start - blockStart);
+                    int to = (int) Math.min(newLength, end - blockStart);
+                    byte[] blockData;
+                    if (from == 0 && to >= block.getSize()) {
+                        blockData = new byte[newLength];
+                    } else {
+                        byte[] current = block.getCommittedData();
+                        if (current == null || current.length < block.getSize()) {
+                            System.out.println("Could not read block " + block.getBlockID() + " to update it");
+                            return false;
+                        }
+                        blockData = Arrays.copyOf(current, newLength);
+                        if (newLength > block.getSize()) {
+                            // Clear anything a failed append left past the old end.
+                            Arrays.fill(blockData, block.getSize(), newLength, (byte) 0);
+                        }
                     }
+                    System.arraycopy(data, (int) (blockStart + from - start), blockData, from, to - from);
+                    stores.add(BlockMessage.store(block.getBlockID(), blockData));
+                    rewritten.add(block);
+                }
+            }
+
+            // The last extent that has blocks; its last block is the one that may grow.
+            Extent[] oldExtents = inode.getExtents();
+            int lastIndex = oldExtents.length - 1;
+            while (lastIndex >= 0 && oldExtents[lastIndex].getBlockCount() == 0) {
+                lastIndex--;
+            }
+            Extent last = lastIndex < 0 ? null : oldExtents[lastIndex];
+            long grownLength = last == null ? 0 : last.getLength() + Math.min(newSize, capacity) - size;
+            Extent[] newExtents = oldExtents;
+            if (newSize > size && size < capacity) {
+                newExtents = oldExtents.clone();
+                newExtents[lastIndex] = new Extent(last.getStartBlockId(), last.getBlockCount(), grownLength);
+            }
+
+            List<FileBlock> added = new ArrayList<>();
+            if (end > capacity) {
+                long addedLength = end - capacity;
+                int addedCount = (int) ((addedLength + fileBlockSize - 1) / fileBlockSize);
+                long nextBlockId = last == null ? -1 : last.getStartBlockId() + last.getBlockCount();
+                long startBlockId;
+                if (last != null && nextBlockId + addedCount <= inode.getReservedBlockIdEnd()) {
+                    startBlockId = nextBlockId;
+                } else {
+                    // Reserve about as many ids again as the file has blocks, so a file growing
+                    // by appends needs a logarithmic number of extents.
+                    int reserved = Math.max(addedCount, (int) Math.min(capacity / fileBlockSize, MAX_GROWTH_RESERVE));
+                    startBlockId = Block.allocateBlockIds(reserved);
+                    inode.setReservedBlockIdEnd(startBlockId + reserved);
                 }
-                data = new byte[bytes.size()];
-                for (int i = 0; i < bytes.size(); i++) {
-                    data[i] = bytes.get(i);
+                for (int b = 0; b < addedCount; b++) {
+                    int from = (int) (capacity - start) + b * fileBlockSize;
+                    byte[] blockData = Arrays.copyOfRange(data, from, (int) Math.min(from + (long) fileBlockSize, data.length));
+                    stores.add(BlockMessage.store(startBlockId + b, blockData));
+                    added.add(new FileBlock(startBlockId + b, blockData.length));
+                }
+                if (startBlockId == nextBlockId) {
+                    if (newExtents == oldExtents) {
+                        newExtents = oldExtents.clone();
+                    }
+                    newExtents[lastIndex] = new Extent(last.getStartBlockId(), last.getBlockCount() + addedCount, grownLength + addedLength);
+                } else {
+                    newExtents = Arrays.copyOf(newExtents, newExtents.length + 1);
+                    newExtents[newExtents.length - 1] = new Extent(startBlockId, addedCount, addedLength);
                 }
-            } else {
-                throw new LocationDoesNotExistException("File does not exist");
             }
 
+            List<CompletableFuture<Boolean>> uploads = FileBlock.submitAll(stores);
+            Transaction transaction = new Transaction();
+            transaction.addOperation(() -> awaitUploads(uploads), () -> freeBlocks(added));
+            Extent[] extents = newExtents;
+            boolean[] removed = new boolean[1];
+            // The last step; if it fails it has changed nothing.
+            transaction.addOperation(() -> commitWrite(inode, path, size, newSize, extents, removed), () -> {});
+            if (!transactionManager.executeTransaction(transaction)) {
+                if (removed[0]) {
+                    // A delete or replace may have freed these blocks before they were stored again.
+                    freeBlocks(rewritten);
+                }
+                return false;
+            }
+            if (newSize != size) {
+                maybeCheckpoint();
+            }
+            return true;
         } finally {
-            blockStoreLock.unlock();
-            inodeStoreLock.unlock();
-            inodeNameStoreLock.unlock();
-            curDirLock.unlock();
+            contentLock.unlock();
         }
+    }
 
-        return data;
+    /**
+     * Finishes a write under the file's directory's write lock. Deleting or replacing the file
+     * doesn't wait for writes to it, so this first checks it is still linked, setting
+     * {@code removed} and throwing if not. If the size changed, the file is then journaled with
+     * its new size and extents as a whole inode, which replay links in place of the old one, and
+     * they are applied. Throws without changing anything if the journal write failed.
+     */
+    private void commitWrite(Inode inode, String path, long oldSize, long newSize, Extent[] extents, boolean[] removed) {
+        checkpointLock.readLock().lock();
+        Inode parent = inode.getParent();
+        Lock dirLock = dirLocks.get(parent == null ? 0 : parent.getInodeNumber()).writeLock();
+        dirLock.lock();
+        try {
+            if (parent == null || dirBlockOf(parent).lookup(inode.getName()) != inode) {
+                removed[0] = true;
+                throw new IllegalStateException(path + " was removed during the write");
+            }
+            if (newSize == oldSize) {
+                return;
+            }
+            Date now = new Date();
+            Inode resized = new Inode(inode.getOwner(), inode.getGroup(), inode.getName(), newSize, inode.getFileType(),
+                    inode.getCreate(), inode.getAccess(), now, inode.getInodeNumber(), extents);
+            resized.setBlockSize(inode.getBlockSize());
+            resized.setParent(parent);
+            logMutation(JournalRecord.create(resized));
+
+            inode.setExtents(extents);
+            inode.setSize(newSize);
+            inode.setModify(now);
+            parent.setSize(parent.getSize() + newSize - oldSize);
+        } finally {
+            dirLock.unlock();
+            checkpointLock.readLock().unlock();
+        }
     }
 
     public Inode getCurDir() {
         return curDir.get();
     }
+
+    /** Sets the calling thread's current directory, e.g. for a worker serving a connection's request. */
+    public void setCurDir(Inode dir) {
+        curDir.set(dir);
+    }
 }
@@ -0,0 +1,152 @@
+package filesystem;
+
+import components.Inode;
+import components.MetadataCodec;
+import interfaces.FileType;
+
+import java.io.IOException;
+
+/**
+ * One namespace mutation in the metadata journal. CREATE_FILE and MKDIR carry the whole new
+ * inode and its parent's inode number, DELETE and SET_SIZE only the path they apply to. Checkpoints are written as a list of
+ * CREATE_FILE and MKDIR records, parents before children. Records are encoded with
+ * {@link MetadataCodec}.
+ */
+public final class JournalRecord {
+    public enum Type {
+        CREATE_FILE(1), MKDIR(2), DELETE(3), SET_SIZE(4);
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        public static Type fromCode(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final String address;
+    private final Inode inode;
+    private final long parentInodeNumber;
+    private final long size;
+
+    private JournalRecord(long sequence, Type type, String address, Inode inode, long parentInodeNumber, long size) {
+        this.sequence = sequence;
+        this.type = type;
+        this.address = address;
+        this.inode = inode;
+        this.parentInodeNumber = parentInodeNumber;
+        this.size = size;
+    }
+
+    /** Records a linked inode; the root, which has no parent, records -1 as its parent. */
+    public static JournalRecord create(Inode inode) {
+        Type type = inode.getFileType() == FileType.DIRECTORY ? Type.MKDIR : Type.CREATE_FILE;
+        long parent = inode.getParent() == null ? -1 : inode.getParent().getInodeNumber();
+        return new JournalRecord(0, type, inode.getAddress(), inode, parent, inode.getSize());
+    }
+
+    public static JournalRecord delete(String address) {
+        return new JournalRecord(0, Type.DELETE, address, null, -1, 0);
+    }
+
+    public static JournalRecord setSize(String address, long size) {
+        return new JournalRecord(0, Type.SET_SIZE, address, null, -1, size);
+    }
+
+    public JournalRecord withSequence(long sequence) {
+        return new JournalRecord(sequence, type, address, inode, parentInodeNumber, size);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /** The new inode of a CREATE_FILE or MKDIR record, otherwise null. */
+    public Inode getInode() {
+        return inode;
+    }
+
+    /** The parent directory of a CREATE_FILE or MKDIR record's inode, otherwise -1. */
+    public long getParentInodeNumber() {
+        return parentInodeNumber;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] encode() {
+        return encode(new MetadataCodec.Encoder());
+    }
+
+    /**
+     * Encodes the record with a shared encoder, so that a run of records (a checkpoint) interns
+     * owner and group names and front-codes addresses across records.
+     */
+    public byte[] encode(MetadataCodec.Encoder encoder) {
+        // The sequence comes first, fixed width, so frames can be scanned without decoding them.
+        encoder.writeFixedLong(sequence);
+        encoder.writeByte(MetadataCodec.VERSION);
+        encoder.writeByte(type.getCode());
+        encoder.writeAddress(address);
+        if (inode != null) {
+            encoder.writeSignedVarLong(parentInodeNumber);
+            encoder.writeInode(inode);
+        } else if (type == Type.SET_SIZE) {
+            encoder.writeVarLong(size);
+        }
+        return encoder.take();
+    }
+
+    public static JournalRecord decode(byte[] bytes) throws IOException {
+        return decode(bytes, new MetadataCodec.Decoder());
+    }
+
+    /** Decodes a record encoded with {@link #encode(MetadataCodec.Encoder)}, in encoding order. */
+    public static JournalRecord decode(byte[] bytes, MetadataCodec.Decoder decoder) throws IOException {
+        decoder.reset(bytes);
+        long sequence = decoder.readFixedLong();
+        int version = decoder.readByte();
+        if (version != MetadataCodec.VERSION) {
+            throw new IOException("Unsupported metadata format version " + version);
+        }
+        Type type = Type.fromCode((byte) decoder.readByte());
+        if (type == null) {
+            throw new IOException("Unknown journal record type");
+        }
+        String address = decoder.readAddress();
+        Inode inode = null;
+        long parentInodeNumber = -1;
+        long size = 0;
+        if (type == Type.CREATE_FILE || type == Type.MKDIR) {
+            parentInodeNumber = decoder.readSignedVarLong();
+            inode = decoder.readInode(Inode.nameOf(address), type == Type.MKDIR ? FileType.DIRECTORY : FileType.FILE);
+            size = inode.getSize();
+        } else if (type == Type.SET_SIZE) {
+            size = decoder.readVarLong();
+        }
+        return new JournalRecord(sequence, type, address, inode, parentInodeNumber, size);
+    }
+}
@@ -0,0 +1,286 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * A concurrent map from primitive {@code long} keys to values. Keys and values live in flat
+ * arrays with open addressing, so an entry costs one {@code long} and one reference instead of
+ * a boxed key and a node object. The table is split into independently locked segments, picked
+ * by the high bits of the hashed key, so writers to different segments don't contend. Reads
+ * take no lock: they probe the table and then check that no write to the segment ran meanwhile,
+ * falling back to the lock only if one did.
+ */
+public class LongHashMap<V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public LongHashMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public LongHashMap(int segmentCount) {
+        if (Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Segment count must be a power of two");
+        }
+        this.segments = (Segment<V>[]) new Segment<?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>();
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    private static long hash(long key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        return segmentShift == 64 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    public V get(long key) {
+        long h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /** Maps the key to a non-null value and returns the previous value, if any. */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("LongHashMap does not store null values");
+        }
+        long h = hash(key);
+        return segmentFor(h).put(key, h, value);
+    }
+
+    public V computeIfAbsent(long key, LongFunction<V> mapping) {
+        long h = hash(key);
+        return segmentFor(h).computeIfAbsent(key, h, mapping);
+    }
+
+    public V remove(long key) {
+        long h = hash(key);
+        return segmentFor(h).remove(key, h);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Returns a copy of the values; each segment is copied atomically but not the map as a whole. */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size());
+        for (Segment<V> segment : segments) {
+            segment.copyValues(values);
+        }
+        return values;
+    }
+
+    private static class Segment<V> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // A slot is free when its value is null, so any long, including 0, is a valid key.
+        private long[] keys = new long[MIN_SEGMENT_CAPACITY];
+        // Holds only V values, so it serializes whenever V does.
+        @SuppressWarnings("serial")
+        private Object[] values = new Object[MIN_SEGMENT_CAPACITY];
+        private int size;
+        // Odd while a write is in progress; bumped before and after every change to the table.
+        private transient volatile int version;
+
+        private int slot(long hash) {
+            // The low bits pick the slot; the high bits already picked the segment.
+            return (int) hash & (keys.length - 1);
+        }
+
+        private void beginWrite() {
+            version++;
+            // The table changes must not become visible before the version does.
+            VarHandle.storeStoreFence();
+        }
+
+        private void endWrite() {
+            version++;
+        }
+
+        /**
+         * Probes without the lock and keeps the result only if the version shows no write
+         * overlapped it. The arrays may then be a mix of an old and a new table, so the probe
+         * bounds itself to the shorter and gives up after one pass.
+         */
+        @SuppressWarnings("unchecked")
+        V get(long key, long hash) {
+            int stamp = version;
+            if ((stamp & 1) == 0) {
+                long[] k = keys;
+                Object[] v = values;
+                int mask = Math.min(k.length, v.length) - 1;
+                Object found = null;
+                int i = (int) hash & mask;
+                for (int n = 0; n <= mask; n++, i = (i + 1) & mask) {
+                    Object value = v[i];
+                    if (value == null) {
+                        break;
+                    }
+                    if (k[i] == key) {
+                        found = value;
+                        break;
+                    }
+                }
+                VarHandle.acquireFence();
+                if (version == stamp) {
+                    return (V) found;
+                }
+            }
+            return lockedGet(key, hash);
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized V lockedGet(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int i = slot(hash); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized V put(long key, long hash, V value) {
+            beginWrite();
+            try {
+                return putLocked(key, hash, value);
+            } finally {
+                endWrite();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V putLocked(long key, long hash, V value) {
+            int mask = keys.length - 1;
+            int i = slot(hash);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V old = (V) values[i];
+                    values[i] = value;
+                    return old;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length * 3 / 4) {
+                resize(keys.length * 2);
+            }
+            return null;
+        }
+
+        synchronized V computeIfAbsent(long key, long hash, LongFunction<V> mapping) {
+            V value = lockedGet(key, hash);
+            if (value == null) {
+                value = mapping.apply(key);
+                if (value != null) {
+                    put(key, hash, value);
+                }
+            }
+            return value;
+        }
+
+        synchronized V remove(long key, long hash) {
+            beginWrite();
+            try {
+                return removeLocked(key, hash);
+            } finally {
+                endWrite();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V removeLocked(long key, long hash) {
+            int mask = keys.length - 1;
+            int i = slot(hash);
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == null) {
+                return null;
+            }
+            V old = (V) values[i];
+
+            // Shift later entries of the probe run back so lookups never stop at the hole.
+            int hole = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = slot(hash(keys[j]));
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = null;
+            size--;
+
+            if (keys.length > MIN_SEGMENT_CAPACITY && size < keys.length / 8) {
+                resize(keys.length / 2);
+            }
+            return old;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void copyValues(List<V> out) {
+            for (Object value : values) {
+                if (value != null) {
+                    out.add((V) value);
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = slot(hash(oldKeys[j]));
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package filesystem;
+
+import components.MetadataCodec;
+
+import components.Inode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Compact image of the namespace at a journal sequence number, named after the sequence it
+ * covers. The file holds one framed CREATE_FILE or MKDIR record per inode, parents before
+ * children and siblings together, in the same frame format as the journal.
+ *
+ * The records are grouped into chunks, and each chunk starts a fresh {@link MetadataCodec}
+ * string table and address front coding, so chunks decode independently. A footer indexes
+ * the chunks: (offset, length) per chunk, then the chunk count and a magic number. Loading maps each chunk and decodes the chunks in parallel.
+ */
+public class MetadataCheckpoint {
+    public static final int CHUNK_RECORDS = 4096;
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final long MAGIC = 0x4446534D43505432L;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int TRAILER_SIZE = 12;
+
+    private MetadataCheckpoint() {
+    }
+
+    /**
+     * Encodes the inodes, which must list parents before their children, as checkpoint chunks
+     * of framed records for {@code sequence}.
+     */
+    public static List<byte[]> encodeChunks(List<Inode> inodes, long sequence) {
+        List<byte[]> chunks = new ArrayList<>();
+        for (int start = 0; start < inodes.size(); start += CHUNK_RECORDS) {
+            MetadataCodec.Encoder encoder = new MetadataCodec.Encoder();
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            for (Inode inode : inodes.subList(start, Math.min(start + CHUNK_RECORDS, inodes.size()))) {
+                byte[] record = JournalRecord.create(inode).withSequence(sequence).encode(encoder);
+                chunk.writeBytes(MetadataJournal.frameHeader(record));
+                chunk.writeBytes(record);
+            }
+            chunks.add(chunk.toByteArray());
+        }
+        return chunks;
+    }
+
+    /** Writes the chunks as the checkpoint for {@code sequence} and drops older checkpoints. */
+    public static File write(File dir, long sequence, List<byte[]> chunks) throws IOException {
+        File file = new File(dir, String.format("%s%020d", CHECKPOINT_PREFIX, sequence));
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer footer = ByteBuffer.allocate(chunks.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+            long offset = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                writeFully(channel, ByteBuffer.wrap(chunks.get(i)));
+                footer.putLong(offset).putLong(chunks.get(i).length);
+                offset += chunks.get(i).length;
+            }
+            footer.putInt(chunks.size()).putLong(MAGIC).flip();
+            writeFully(channel, footer);
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        File[] old = dir.listFiles((d, name) -> name.startsWith(CHECKPOINT_PREFIX) && !name.equals(file.getName()));
+        if (old != null) {
+            for (File stale : old) {
+                if (!stale.delete()) {
+                    System.out.println("Failed to delete old checkpoint " + stale);
+                }
+            }
+        }
+        return file;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** Returns null if there is no checkpoint yet. */
+    public static File findLatest(File dir) {
+        File[] checkpoints = dir.listFiles((d, name) -> name.startsWith(CHECKPOINT_PREFIX) && !name.endsWith(".tmp"));
+        File latest = null;
+        if (checkpoints != null) {
+            for (File checkpoint : checkpoints) {
+                if (latest == null || sequenceOf(checkpoint) > sequenceOf(latest)) {
+                    latest = checkpoint;
+                }
+            }
+        }
+        return latest;
+    }
+
+    public static long sequenceOf(File checkpoint) {
+        return Long.parseLong(checkpoint.getName().substring(CHECKPOINT_PREFIX.length()));
+    }
+
+    /**
+     * Maps the checkpoint and decodes its chunks on {@code pool}. Each decoded chunk is passed to
+     * {@code onChunk} on the decoding thread, so chunks may arrive in any order and
+     * concurrently. Returns every chunk's records, in file order, once all are done.
+     */
+    public static List<List<JournalRecord>> load(File checkpoint, ExecutorService pool,
+                                                 Consumer<List<JournalRecord>> onChunk) throws IOException {
+        List<Future<List<JournalRecord>>> futures = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(checkpoint.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw new IOException("Checkpoint " + checkpoint + " is truncated");
+            }
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            int chunkCount = trailer.getInt();
+            if (trailer.getLong() != MAGIC || chunkCount < 0
+                    || (long) chunkCount * INDEX_ENTRY_SIZE > size - TRAILER_SIZE) {
+                throw new IOException("Checkpoint " + checkpoint + " has no valid chunk index");
+            }
+            long indexOffset = size - TRAILER_SIZE - (long) chunkCount * INDEX_ENTRY_SIZE;
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) chunkCount * INDEX_ENTRY_SIZE);
+
+            for (int i = 0; i < chunkCount; i++) {
+                long offset = index.getLong();
+                long length = index.getLong();
+                if (offset < 0 || length < 0 || length > Integer.MAX_VALUE || offset + length > indexOffset) {
+                    throw new IOException("Checkpoint " + checkpoint + " has an invalid chunk index");
+                }
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                futures.add(pool.submit(() -> {
+                    List<JournalRecord> decoded = decodeChunk(chunk);
+                    onChunk.accept(decoded);
+                    return decoded;
+                }));
+            }
+
+            List<List<JournalRecord>> chunks = new ArrayList<>(futures.size());
+            for (Future<List<JournalRecord>> future : futures) {
+                chunks.add(future.get());
+            }
+            return chunks;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading checkpoint " + checkpoint, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not load checkpoint " + checkpoint, e.getCause());
+        } finally {
+            for (Future<List<JournalRecord>> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static List<JournalRecord> decodeChunk(ByteBuffer chunk) throws IOException {
+        List<JournalRecord> decoded = new ArrayList<>(CHUNK_RECORDS);
+        MetadataCodec.Decoder decoder = new MetadataCodec.Decoder();
+        byte[] payload;
+        while ((payload = MetadataJournal.readFrame(chunk)) != null) {
+            decoded.add(JournalRecord.decode(payload, decoder));
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,346 @@
+package filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of namespace mutations. Every mutation is appended as a framed record
+ * (length, CRC32C, encoded {@link JournalRecord}) with the next sequence number before it is
+ * applied. The journal is split into files named after their first sequence number, so the
+ * files made obsolete by a checkpoint can be deleted whole. Appends are serialized with a
+ * ReentrantLock rather than a monitor: a virtual thread blocked in synchronized code on JDK 21
+ * pins its carrier thread, and every mutating request waits here on an fsync.
+ */
+public class MetadataJournal implements Closeable {
+    static final int FRAME_HEADER_SIZE = 8;
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    private final File dir;
+    private final boolean sync;
+    // First sequence number of each journal file.
+    private final TreeMap<Long, File> files = new TreeMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel active;
+    private long lastSequence;
+
+    /**
+     * Opens the journal in {@code dir}. {@code floorSequence} is the sequence of the latest
+     * checkpoint, so numbering continues after it even when no journal file is left.
+     */
+    public MetadataJournal(File dir, long floorSequence, boolean sync) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create metadata directory " + dir);
+        }
+        this.lastSequence = floorSequence;
+
+        File[] existing = dir.listFiles((d, name) -> name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX));
+        if (existing != null) {
+            for (File file : existing) {
+                String name = file.getName();
+                files.put(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())), file);
+            }
+        }
+        if (!files.isEmpty()) {
+            // An empty last file still tells where the previous one ended.
+            lastSequence = Math.max(lastSequence, files.lastKey() - 1);
+            recoverTail(files.lastEntry().getValue());
+        }
+        roll();
+    }
+
+    /** Finds the last sequence number and cuts off a record torn by a crash mid-append. */
+    private void recoverTail(File file) throws IOException {
+        long validSize = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] payload;
+            while ((payload = readFrame(in)) != null) {
+                lastSequence = Math.max(lastSequence, sequenceOf(payload));
+                validSize += FRAME_HEADER_SIZE + payload.length;
+            }
+        } catch (IOException e) {
+            System.out.println("Truncating torn journal record in " + file + ": " + e.getMessage());
+        }
+        if (validSize < file.length()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validSize);
+            }
+        }
+    }
+
+    /** Appends the record and returns its sequence number. */
+    public long append(JournalRecord record) throws IOException {
+        lock.lock();
+        try {
+            long sequence = lastSequence + 1;
+            writeFrame(active, record.withSequence(sequence).encode());
+            if (sync) {
+                active.force(false);
+            }
+            lastSequence = sequence;
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the records with consecutive sequence numbers in a single write and fsync, and
+     * returns the last one. If the write fails, the file is cut back so none of them are kept.
+     */
+    public long appendAll(List<JournalRecord> records) throws IOException {
+        lock.lock();
+        try {
+            long sequence = lastSequence;
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (JournalRecord record : records) {
+                byte[] payload = record.withSequence(++sequence).encode();
+                frames.write(frameHeader(payload));
+                frames.write(payload);
+            }
+            long start = active.size();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(frames.toByteArray());
+                while (buffer.hasRemaining()) {
+                    active.write(buffer);
+                }
+                if (sync) {
+                    active.force(false);
+                }
+            } catch (IOException e) {
+                active.truncate(start);
+                throw e;
+            }
+            lastSequence = sequence;
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Starts a new journal file, so everything up to the current sequence is in sealed files. */
+    public void roll() throws IOException {
+        lock.lock();
+        try {
+            if (active != null) {
+                active.force(false);
+                active.close();
+            }
+            long first = lastSequence + 1;
+            File file = new File(dir, String.format("%s%020d%s", JOURNAL_PREFIX, first, JOURNAL_SUFFIX));
+            active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            files.put(first, file);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Deletes the journal files holding only records up to and including {@code sequence}. */
+    public void deleteThrough(long sequence) {
+        lock.lock();
+        try {
+            while (files.size() > 1) {
+                Map.Entry<Long, File> first = files.firstEntry();
+                Long next = files.higherKey(first.getKey());
+                if (next - 1 > sequence) {
+                    break;
+                }
+                if (!first.getValue().delete()) {
+                    System.out.println("Failed to delete journal file " + first.getValue());
+                    break;
+                }
+                files.remove(first.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Passes every record after {@code afterSequence} to {@code consumer}, in order. */
+    public void replay(long afterSequence, Consumer<JournalRecord> consumer) throws IOException {
+        for (byte[] payload : payloadsAfter(afterSequence, getLastSequence(), filesFrom(afterSequence))) {
+            consumer.accept(JournalRecord.decode(payload));
+        }
+    }
+
+    /**
+     * Returns the framed records after {@code afterSequence} as they are stored, or null if some
+     * of them are no longer in the journal and a checkpoint has to be sent instead.
+     */
+    public byte[] readSince(long afterSequence) throws IOException {
+        List<File> toRead;
+        long upTo;
+        lock.lock();
+        try {
+            if (afterSequence + 1 < files.firstKey()) {
+                return null;
+            }
+            toRead = filesFrom(afterSequence);
+            upTo = lastSequence;
+        } finally {
+            lock.unlock();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] payload : payloadsAfter(afterSequence, upTo, toRead)) {
+            out.write(frameHeader(payload));
+            out.write(payload);
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the files that may hold records after {@code afterSequence}. */
+    private List<File> filesFrom(long afterSequence) {
+        lock.lock();
+        try {
+            Long start = files.floorKey(afterSequence + 1);
+            return new ArrayList<>((start == null ? files : files.tailMap(start, true)).values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the records in (afterSequence, upTo]. Reading stops at {@code upTo}, so a record
+     * being appended concurrently is never read half written.
+     */
+    private static List<byte[]> payloadsAfter(long afterSequence, long upTo, List<File> toRead) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        if (afterSequence >= upTo) {
+            return payloads;
+        }
+        for (File file : toRead) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                byte[] payload;
+                while ((payload = readFrame(in)) != null) {
+                    long sequence = sequenceOf(payload);
+                    if (sequence > afterSequence) {
+                        payloads.add(payload);
+                    }
+                    if (sequence >= upTo) {
+                        return payloads;
+                    }
+                }
+            }
+        }
+        return payloads;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (active != null) {
+                active.force(false);
+                active.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static void writeFrame(FileChannel channel, byte[] payload) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(frameHeader(payload));
+        ByteBuffer body = ByteBuffer.wrap(payload);
+        while (header.hasRemaining() || body.hasRemaining()) {
+            channel.write(new ByteBuffer[] {header, body});
+        }
+    }
+
+    static byte[] frameHeader(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return ByteBuffer.allocate(FRAME_HEADER_SIZE).putInt(payload.length).putInt((int) crc.getValue()).array();
+    }
+
+    /**
+     * Reads the next frame's payload, or returns null at a clean end of stream. Throws if the
+     * frame is truncated or its checksum doesn't match.
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int checksum = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid journal frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Journal frame checksum mismatch");
+        }
+        return payload;
+    }
+
+    /** Reads the next frame's payload from the buffer, or returns null once it is used up. */
+    static byte[] readFrame(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        if (buffer.remaining() < FRAME_HEADER_SIZE) {
+            throw new IOException("Truncated journal frame");
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid journal frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Journal frame checksum mismatch");
+        }
+        return payload;
+    }
+
+    static long sequenceOf(byte[] payload) {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    /** Returns the sequence number of the last record in a block of frames from {@link #readSince(long)}. */
+    public static long lastSequenceOf(byte[] frames) {
+        ByteBuffer buffer = ByteBuffer.wrap(frames);
+        long last = -1;
+        while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+            int length = buffer.getInt();
+            buffer.getInt();
+            last = buffer.getLong(buffer.position());
+            buffer.position(buffer.position() + length);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,168 @@
+package filesystem;
+
+import components.DirBlock;
+import components.Inode;
+import interfaces.FileType;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily walks a subtree in pre-order: a directory, then each of its children in directory
+ * order, descending into subdirectories down to a depth limit. The walk keeps an explicit stack
+ * instead of recursing and takes no locks. Each directory is read from a snapshot taken when
+ * the walk enters it, so every directory's entries are listed exactly as they were at one
+ * moment; directories entered later may reflect later changes.
+ *
+ * {@link #getPageToken()} names the last entry returned. A walk started with that token
+ * continues right after it, even if entries around it were added or removed meanwhile.
+ */
+public class TreeWalker implements Iterator<TreeWalker.Entry> {
+    /** The start directory itself, as a page token. */
+    public static final String START_TOKEN = ".";
+
+    public static final class Entry {
+        private final Inode inode;
+        private final String path;
+        private final int depth;
+
+        Entry(Inode inode, String path, int depth) {
+            this.inode = inode;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        public Inode getInode() {
+            return inode;
+        }
+
+        /** The path relative to the start directory, or "" for the start directory itself. */
+        public String getPath() {
+            return path;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    private static final class Frame {
+        final String path;
+        final int depth;
+        final Iterator<Inode> children;
+
+        Frame(String path, int depth, Iterator<Inode> children) {
+            this.path = path;
+            this.depth = depth;
+            this.children = children;
+        }
+    }
+
+    private final FileSystem fileSystem;
+    private final int maxDepth;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Entry pending;
+    private String pageToken;
+
+    /**
+     * Walks the tree under {@code start}, returning entries up to {@code maxDepth} levels below
+     * it. With a null page token the walk begins with {@code start} itself.
+     */
+    TreeWalker(FileSystem fileSystem, Inode start, int maxDepth, String pageToken) {
+        this.fileSystem = fileSystem;
+        this.maxDepth = maxDepth;
+        if (pageToken == null) {
+            pending = new Entry(start, "", 0);
+            descend(start, "", 0, null);
+        } else {
+            this.pageToken = pageToken;
+            resume(start, pageToken);
+        }
+    }
+
+    /**
+     * Rebuilds the stack as it was right after returning the entry the token names: every
+     * directory on the way to it continues after the next component of the token.
+     */
+    private void resume(Inode start, String token) {
+        if (token.equals(START_TOKEN)) {
+            descend(start, "", 0, null);
+            return;
+        }
+        Inode dir = start;
+        int depth = 0;
+        int from = 0;
+        while (true) {
+            int slash = token.indexOf('/', from);
+            String name = token.substring(from, slash < 0 ? token.length() : slash);
+            String dirPath = from == 0 ? "" : token.substring(0, from - 1);
+            if (!descend(dir, dirPath, depth, name)) {
+                return;
+            }
+            DirBlock block = fileSystem.dirBlockOf(dir);
+            Inode child = block == null ? null : block.lookup(name);
+            if (child == null || child.getFileType() != FileType.DIRECTORY) {
+                // Whatever lay below it is gone; the walk goes on with its next sibling.
+                return;
+            }
+            if (slash < 0) {
+                descend(child, token, depth + 1, null);
+                return;
+            }
+            dir = child;
+            depth++;
+            from = slash + 1;
+        }
+    }
+
+    /** Pushes the directory's children after {@code afterName}, if its children are within the depth limit. */
+    private boolean descend(Inode dir, String path, int depth, String afterName) {
+        if (depth >= maxDepth) {
+            return false;
+        }
+        DirBlock block = fileSystem.dirBlockOf(dir);
+        Iterator<Inode> children = block == null ? Collections.emptyIterator() : block.snapshot(afterName);
+        stack.push(new Frame(path, depth, children));
+        return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pending != null) {
+            return true;
+        }
+        while (!stack.isEmpty()) {
+            Frame top = stack.peek();
+            if (top.children.hasNext()) {
+                Inode child = top.children.next();
+                String path = top.path.isEmpty() ? child.getName() : top.path + "/" + child.getName();
+                pending = new Entry(child, path, top.depth + 1);
+                if (child.getFileType() == FileType.DIRECTORY) {
+                    descend(child, path, top.depth + 1, null);
+                }
+                return true;
+            }
+            stack.pop();
+        }
+        return false;
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry entry = pending;
+        pending = null;
+        pageToken = entry.getPath().isEmpty() ? START_TOKEN : entry.getPath();
+        return entry;
+    }
+
+    /** The token for resuming after the last entry returned, or null if none was returned yet. */
+    public String getPageToken() {
+        return pageToken;
+    }
+}
@@ -1,12 +1,30 @@
 package worker;
 
+import filesystem.MetadataJournal;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class Client {
     private static final String STORAGE_DIR = "storage";
+    // Metadata replica: the latest checkpoint, the journal records after it, and the last
+    // sequence number received.
+    private static final File METADATA_DIR = new File(STORAGE_DIR, "metadata");
+    private static final File CHECKPOINT_FILE = new File(METADATA_DIR, "checkpoint");
+    private static final File JOURNAL_FILE = new File(METADATA_DIR, "journal");
+    private static final File POSITION_FILE = new File(METADATA_DIR, "position");
+    // Stored files are mapped once and served from the mapping until they are replaced.
+    private static final MappedRegionCache<String> MAPPED_FILES = new MappedRegionCache<>(SegmentBlockStore.DEFAULT_MAPPED_BYTES_MAX);
 
     public static void main(String[] args) {
         if (args.length != 1) {
@@ -58,38 +76,55 @@ public class Client {
                 if (cmd.equals("store")) {
                     System.out.println("Store!");
 
-                    // Read the size of the incoming data
-                    byte[] sizeBytes = new byte[10];
-                    in.readFully(sizeBytes);
-                    int size = Integer.parseInt(new String(sizeBytes).trim());
-
-                    // Read data
-                    byte[] data = new byte[size];
-                    in.readFully(data);
+                    byte[] data = readData(in);
 
-                    // Save data to file
+                    // Save data to a new file that replaces the old one, so a mapping of the old one stays valid
                     File file = new File(STORAGE_DIR, fileId);
-                    try (FileOutputStream fos = new FileOutputStream(file)) {
+                    File tmp = new File(STORAGE_DIR, fileId + ".tmp");
+                    try (FileOutputStream fos = new FileOutputStream(tmp)) {
                         fos.write(data);
                     }
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    MAPPED_FILES.invalidate(fileId);
 
                     System.out.println(file.toPath().getFileName() + " stored at " + STORAGE_DIR);
 
                     // Send success response
                     out.write("SUCCESS".getBytes());
                 } else if (cmd.equals("fetch")) {
-                    File file = new File(STORAGE_DIR, fileId);
-                    if (file.exists()) {
-                        byte[] data = Files.readAllBytes(file.toPath());
-                        String size = String.format("%010d", data.length);
+                    ByteBuffer data;
+                    try {
+                        // Serve the file from its cached mapping instead of reading it onto the heap
+                        data = MAPPED_FILES.map(fileId, new File(STORAGE_DIR, fileId).toPath());
+                    } catch (NoSuchFileException e) {
+                        data = null;
+                    }
+                    if (data != null) {
+                        String size = String.format("%010d", data.remaining());
 
                         // Send size and data
                         out.write(size.getBytes());
-                        out.write(data);
+                        WritableByteChannel outChannel = Channels.newChannel(out);
+                        while (data.hasRemaining()) {
+                            outChannel.write(data);
+                        }
+                        out.flush();
                     } else {
                         // Send error response
                         out.write("ERROR".getBytes());
                     }
+                } else if (cmd.equals("ckpt")) {
+                    byte[] data = readData(in);
+                    storeCheckpoint(Long.parseLong(fileId), data);
+                    out.write("SUCCESS".getBytes());
+                } else if (cmd.equals("jrnl")) {
+                    byte[] data = readData(in);
+                    if (appendJournal(Long.parseLong(fileId), data)) {
+                        out.write("SUCCESS".getBytes());
+                    } else {
+                        // The delta doesn't follow what this replica has; the sender resends a checkpoint.
+                        out.write("ERROR  ".getBytes());
+                    }
                 } else {
                     out.write("INVALID".getBytes());
                 }
@@ -98,4 +133,65 @@ public class Client {
             e.printStackTrace();
         }
     }
+
+    private static byte[] readData(DataInputStream in) throws IOException {
+        // Read the size of the incoming data
+        byte[] sizeBytes = new byte[10];
+        in.readFully(sizeBytes);
+        int size = Integer.parseInt(new String(sizeBytes).trim());
+
+        // Read data
+        byte[] data = new byte[size];
+        in.readFully(data);
+        return data;
+    }
+
+    private static synchronized void storeCheckpoint(long sequence, byte[] data) throws IOException {
+        if (!METADATA_DIR.exists()) {
+            METADATA_DIR.mkdirs();
+        }
+        writeAtomically(CHECKPOINT_FILE, data);
+        writeAtomically(JOURNAL_FILE, new byte[0]);
+        writeAtomically(POSITION_FILE, Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Metadata checkpoint at sequence " + sequence + " stored");
+    }
+
+    /**
+     * Appends journal records that follow {@code afterSequence}. Returns false if this replica
+     * is not at that position.
+     */
+    private static synchronized boolean appendJournal(long afterSequence, byte[] data) throws IOException {
+        if (!POSITION_FILE.exists()) {
+            return false;
+        }
+        long position = Long.parseLong(new String(Files.readAllBytes(POSITION_FILE.toPath()), StandardCharsets.UTF_8).trim());
+        if (position != afterSequence) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(JOURNAL_FILE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        long last = MetadataJournal.lastSequenceOf(data);
+        writeAtomically(POSITION_FILE, Long.toString(last).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Metadata journal now at sequence " + last);
+        return true;
+    }
+
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
 }
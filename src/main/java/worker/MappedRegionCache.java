@@ -0,0 +1,94 @@
+package worker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory mappings of files, such as segments keyed by segment id, evicted least
+ * recently used first once the mapped bytes exceed the capacity. An evicted mapping stays
+ * valid for any buffer still referencing it and is released by the GC once those are gone.
+ */
+public class MappedRegionCache<K> {
+    private final long capacityBytes;
+    private final LinkedHashMap<K, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
+
+    public MappedRegionCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Returns a view of {@code length} bytes at {@code offset} in the segment. The segment is
+     * remapped if it has grown past the end of the cached mapping.
+     */
+    public synchronized ByteBuffer slice(K segmentId, FileChannel channel, long offset, int length) throws IOException {
+        long end = offset + length;
+        MappedByteBuffer region = regions.get(segmentId);
+        if (region == null || region.capacity() < end) {
+            if (region != null) {
+                regions.remove(segmentId);
+                mappedBytes -= region.capacity();
+            }
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE || size < end) {
+                throw new IOException("Cannot map " + end + " bytes of segment " + segmentId);
+            }
+            region = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            regions.put(segmentId, region);
+            mappedBytes += region.capacity();
+            evict(segmentId);
+        }
+        return region.slice((int) offset, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a view of the whole file, opening and mapping it only if it isn't cached. A file
+     * that is replaced must be invalidated, or the old contents are returned.
+     */
+    public synchronized ByteBuffer map(K key, Path file) throws IOException {
+        MappedByteBuffer region = regions.get(key);
+        if (region == null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Cannot map " + size + " bytes of " + file);
+                }
+                region = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            regions.put(key, region);
+            mappedBytes += region.capacity();
+            evict(key);
+        }
+        return region.duplicate().asReadOnlyBuffer();
+    }
+
+    public synchronized void invalidate(K segmentId) {
+        MappedByteBuffer region = regions.remove(segmentId);
+        if (region != null) {
+            mappedBytes -= region.capacity();
+        }
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    private void evict(K keep) {
+        Iterator<Map.Entry<K, MappedByteBuffer>> it = regions.entrySet().iterator();
+        while (mappedBytes > capacityBytes && it.hasNext()) {
+            Map.Entry<K, MappedByteBuffer> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            mappedBytes -= entry.getValue().capacity();
+            it.remove();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package worker;
 
+import components.Block;
+import components.BlockMessage;
 import org.apache.ratis.RaftConfigKeys;
 import org.apache.ratis.conf.ConfUtils;
 import org.apache.ratis.conf.RaftProperties;
@@ -10,9 +12,15 @@ import org.apache.ratis.netty.NettyConfigKeys;
 import org.apache.ratis.protocol.*;
 import org.apache.ratis.server.RaftServer;
 import org.apache.ratis.server.RaftServerConfigKeys;
+import org.apache.ratis.proto.RaftProtos;
+import org.apache.ratis.server.protocol.TermIndex;
+import org.apache.ratis.server.raftlog.RaftLog;
+import org.apache.ratis.server.storage.RaftStorage;
 import org.apache.ratis.statemachine.StateMachine;
+import org.apache.ratis.statemachine.StateMachineStorage;
 import org.apache.ratis.statemachine.TransactionContext;
 import org.apache.ratis.statemachine.impl.BaseStateMachine;
+import org.apache.ratis.statemachine.impl.FileListSnapshotInfo;
 import org.apache.ratis.thirdparty.com.google.protobuf.ByteString;
 import org.apache.ratis.util.LifeCycle;
 import org.apache.ratis.util.NetUtils;
@@ -20,15 +28,18 @@ import org.apache.ratis.util.SizeInBytes;
 import org.apache.ratis.util.TimeDuration;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class RaftWorkerServer {
+    private static final long SNAPSHOT_THRESHOLD = 10000;
+    private static final int SNAPSHOTS_RETAINED = 2;
+
     public static void main(String[] args) throws IOException {
         if (args.length != 3) {
             System.out.println("Usage: java RaftWorkerServer <current-address> <peer-addresses> <storage-dir>");
@@ -81,6 +92,19 @@ public class RaftWorkerServer {
         RaftServerConfigKeys.Write.setElementLimit(properties, 40960);
         RaftServerConfigKeys.Write.setByteLimit(properties, SizeInBytes.valueOf("1000MB"));
 
+        // Every block is stored as one log entry, so the log has to accept entries as large as the biggest block.
+        SizeInBytes entrySizeMax = SizeInBytes.valueOf(2L * Block.MAX_BLOCK_SIZE);
+        RaftServerConfigKeys.Log.setWriteBufferSize(properties, entrySizeMax);
+        RaftServerConfigKeys.Log.Appender.setBufferByteLimit(properties, entrySizeMax);
+        RaftServerConfigKeys.Log.setSegmentSizeMax(properties, SizeInBytes.valueOf("64MB"));
+
+        // Snapshot regularly and drop the log up to each snapshot; lagging peers get the snapshot installed.
+        RaftServerConfigKeys.Snapshot.setAutoTriggerEnabled(properties, true);
+        RaftServerConfigKeys.Snapshot.setAutoTriggerThreshold(properties, SNAPSHOT_THRESHOLD);
+        RaftServerConfigKeys.Snapshot.setRetentionFileNum(properties, SNAPSHOTS_RETAINED);
+        RaftServerConfigKeys.Log.setPurgeUptoSnapshotIndex(properties, true);
+        RaftServerConfigKeys.Log.Appender.setInstallSnapshotEnabled(properties, true);
+
         RaftServer raftServer = RaftServer.newBuilder()
                 .setServerId(peerId)
                 .setGroup(raftGroup)
@@ -92,50 +116,179 @@ public class RaftWorkerServer {
     }
 
     static class SimpleStateMachine extends BaseStateMachine {
-        private static final String STORAGE_DIR = "storage";
+        private static final String BLOCKS_DIR = "blocks";
+
+        private final SegmentSnapshotStorage snapshotStorage = new SegmentSnapshotStorage();
+        private SegmentBlockStore store;
+
+        @Override
+        public void initialize(RaftServer server, RaftGroupId groupId, RaftStorage raftStorage) throws IOException {
+            super.initialize(server, groupId, raftStorage);
+            snapshotStorage.init(raftStorage);
+            openStore();
+        }
 
-        public SimpleStateMachine() {
-            // Ensure the storage directory exists
-            File storageDir = new File(STORAGE_DIR);
-            if (!storageDir.exists()) {
-                storageDir.mkdirs();
+        /**
+         * Called after a snapshot was installed from the leader. Ratis has replaced the state
+         * machine directory with the snapshot files, so the store is rebuilt from them.
+         */
+        @Override
+        public void reinitialize() throws IOException {
+            if (store != null) {
+                store.close();
             }
+            snapshotStorage.loadLatestSnapshot();
+            openStore();
+        }
+
+        /**
+         * Keeps the blocks next to this peer's Raft state so peers on one host don't share a
+         * directory. The blocks directory always holds everything applied so far; it is only
+         * rebuilt from the latest snapshot when it is missing.
+         */
+        private void openStore() throws IOException {
+            File blocksDir = new File(snapshotStorage.getStateMachineDir(), BLOCKS_DIR);
+            FileListSnapshotInfo snapshot = snapshotStorage.getLatestSnapshot();
+            if (!blocksDir.exists() && snapshot != null) {
+                File snapshotDir = snapshotStorage.getSnapshotDir(snapshot.getTerm(), snapshot.getIndex());
+                File tmpDir = new File(snapshotStorage.getStateMachineDir(), BLOCKS_DIR + ".restore");
+                SegmentSnapshotStorage.deleteRecursively(tmpDir);
+                Files.createDirectories(tmpDir.toPath());
+                for (String name : snapshotStorage.readManifest(snapshotDir)) {
+                    Files.createLink(new File(tmpDir, name).toPath(), new File(snapshotDir, name).toPath());
+                }
+                Files.move(tmpDir.toPath(), blocksDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            this.store = new SegmentBlockStore(blocksDir);
+            if (snapshot != null) {
+                setLastAppliedTermIndex(snapshot.getTermIndex());
+            }
+        }
+
+        @Override
+        public StateMachineStorage getStateMachineStorage() {
+            return snapshotStorage;
+        }
+
+        @Override
+        public long takeSnapshot() throws IOException {
+            TermIndex last = getLastAppliedTermIndex();
+            if (last == null || last.getIndex() < 0) {
+                return RaftLog.INVALID_LOG_INDEX;
+            }
+            if (snapshotStorage.getSnapshotDir(last.getTerm(), last.getIndex()).exists()) {
+                return last.getIndex();
+            }
+
+            File tmpDir = snapshotStorage.newTmpSnapshotDir(last.getTerm(), last.getIndex());
+            List<String> segmentNames = store.linkSegments(tmpDir);
+            snapshotStorage.commitSnapshot(tmpDir, segmentNames, last.getTerm(), last.getIndex());
+            System.out.println("Took snapshot at " + last + " with " + segmentNames.size() + " segments");
+            return last.getIndex();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (store != null) {
+                store.close();
+            }
+            super.close();
         }
 
         @Override
         public CompletableFuture<Message> applyTransaction(TransactionContext trx) {
-            ByteString logData = trx.getLogEntry().getStateMachineLogEntry().getLogData();
-            String[] parts = logData.toStringUtf8().split(",", 4);
-            System.out.println(parts[0] + " " + parts[1] + " " + parts[2]);
-            String cmd = parts[0];
-            String fileId = parts[1];
-            int size = Integer.parseInt(parts[2]);
-            byte[] data = parts[3].getBytes();
-
-            if (cmd.equals("store")) {
-                File file = new File(STORAGE_DIR, fileId);
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    fos.write(data);
+            RaftProtos.LogEntryProto entry = trx.getLogEntry();
+            updateLastAppliedTermIndex(entry.getTerm(), entry.getIndex());
+            ByteString logData = entry.getStateMachineLogEntry().getLogData();
+            BlockMessage request = BlockMessage.parse(logData);
+            if (request == null) {
+                return CompletableFuture.completedFuture(BlockMessage.invalid().toMessage());
+            }
+            System.out.println(request.getOp() + " " + request.getBlockId() + " " + request.getPayload().size());
+
+            if (request.getOp() == BlockMessage.Op.BATCH) {
+                return CompletableFuture.completedFuture(applyBatch(request));
+            } else if (request.getOp() == BlockMessage.Op.STORE) {
+                if (!request.isChecksumValid()) {
+                    return CompletableFuture.completedFuture(BlockMessage.error(request.getBlockId()).toMessage());
+                }
+                try {
+                    store.put(request);
                 } catch (IOException e) {
                     e.printStackTrace();
-                    return CompletableFuture.completedFuture(Message.valueOf("ERROR"));
+                    return CompletableFuture.completedFuture(BlockMessage.error(request.getBlockId()).toMessage());
                 }
-                return CompletableFuture.completedFuture(Message.valueOf("SUCCESS"));
-            } else if (cmd.equals("fetch")) {
-                File file = new File(STORAGE_DIR, fileId);
-                if (file.exists()) {
-                    try {
-                        byte[] fileData = Files.readAllBytes(file.toPath());
-                        return CompletableFuture.completedFuture(Message.valueOf(new String(fileData)));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        return CompletableFuture.completedFuture(Message.valueOf("ERROR"));
-                    }
-                } else {
-                    return CompletableFuture.completedFuture(Message.valueOf("ERROR"));
+                return CompletableFuture.completedFuture(BlockMessage.success(request.getBlockId()).toMessage());
+            } else if (request.getOp() == BlockMessage.Op.DELETE) {
+                try {
+                    store.delete(request.getBlockId());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return CompletableFuture.completedFuture(BlockMessage.error(request.getBlockId()).toMessage());
                 }
+                return CompletableFuture.completedFuture(BlockMessage.success(request.getBlockId()).toMessage());
+            } else if (request.getOp() == BlockMessage.Op.FETCH) {
+                return CompletableFuture.completedFuture(fetch(request));
             } else {
-                return CompletableFuture.completedFuture(Message.valueOf("INVALID"));
+                return CompletableFuture.completedFuture(BlockMessage.invalid().toMessage());
+            }
+        }
+
+        /**
+         * Applies the STORE and DELETE messages of a batch in order. Nothing is applied unless
+         * the batch checksum and every STORE checksum match.
+         */
+        private Message applyBatch(BlockMessage batch) {
+            List<BlockMessage> messages = batch.isChecksumValid() ? BlockMessage.parseBatch(batch.getPayload()) : null;
+            if (messages == null) {
+                return BlockMessage.error(batch.getBlockId()).toMessage();
+            }
+            for (BlockMessage message : messages) {
+                boolean valid = message.getOp() == BlockMessage.Op.STORE
+                        ? message.isChecksumValid() : message.getOp() == BlockMessage.Op.DELETE;
+                if (!valid) {
+                    return BlockMessage.error(batch.getBlockId()).toMessage();
+                }
+            }
+            try {
+                for (BlockMessage message : messages) {
+                    if (message.getOp() == BlockMessage.Op.STORE) {
+                        store.put(message);
+                    } else {
+                        store.delete(message.getBlockId());
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return BlockMessage.error(batch.getBlockId()).toMessage();
+            }
+            return BlockMessage.success(batch.getBlockId()).toMessage();
+        }
+
+        /**
+         * Block fetches are read-only, so clients send them with sendReadOnly/sendStaleRead and
+         * they are served here without going through the Raft log.
+         */
+        @Override
+        public CompletableFuture<Message> query(Message message) {
+            BlockMessage request = BlockMessage.parse(message);
+            if (request == null || request.getOp() != BlockMessage.Op.FETCH) {
+                return CompletableFuture.completedFuture(BlockMessage.invalid().toMessage());
+            }
+            return CompletableFuture.completedFuture(fetch(request));
+        }
+
+        private Message fetch(BlockMessage request) {
+            try {
+                ByteString payload = store.get(request.getBlockId());
+                if (payload == null) {
+                    return BlockMessage.error(request.getBlockId()).toMessage();
+                }
+                return BlockMessage.success(request.getBlockId(), payload).toMessage();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return BlockMessage.error(request.getBlockId()).toMessage();
             }
         }
     }
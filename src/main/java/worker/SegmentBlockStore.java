@@ -0,0 +1,390 @@
+package worker;
+
+import components.BlockMessage;
+import org.apache.ratis.thirdparty.com.google.protobuf.ByteString;
+import org.apache.ratis.thirdparty.com.google.protobuf.UnsafeByteOperations;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only block store. Blocks are appended to large segment files as records with the
+ * same layout as a {@link BlockMessage} (a STORE record holds the block, a DELETE record is a
+ * tombstone), and an in-memory index maps each live block id to its place in a segment.
+ * Segments that are mostly dead are compacted in the background by copying their live
+ * records to the active segment and deleting the old file. Reads are served from memory
+ * mapped segments, so a fetched block is a view of the page cache rather than a heap copy.
+ */
+public class SegmentBlockStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE_MAX = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAPPED_BYTES_MAX = 1024L * 1024 * 1024;
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final long COMPACTION_INTERVAL_SECONDS = 30;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    static final class Location {
+        final long segmentId;
+        final long offset;
+        final int length;
+
+        Location(long segmentId, long offset, int length) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong size;
+        final AtomicLong deadBytes = new AtomicLong();
+
+        Segment(long id, File file, FileChannel channel) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = new AtomicLong(channel.size());
+        }
+
+        double liveRatio() {
+            long total = size.get();
+            return total == 0 ? 1.0 : (double) (total - deadBytes.get()) / total;
+        }
+    }
+
+    private final File dir;
+    private final long segmentSizeMax;
+    private final Map<Long, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Readers hold the read lock while they use a segment, compaction takes the write lock to drop one.
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    // Serializes appends to the active segment and the index updates that go with them.
+    private final Object writeLock = new Object();
+    // Keeps compaction from moving records out of segments while a snapshot links them.
+    private final Object compactionLock = new Object();
+    private volatile Segment active;
+
+    private final MappedRegionCache<Long> mappedRegions;
+    private final ScheduledExecutorService compactor;
+
+    public SegmentBlockStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE_MAX, DEFAULT_MAPPED_BYTES_MAX);
+    }
+
+    public SegmentBlockStore(File dir, long segmentSizeMax, long mappedBytesMax) throws IOException {
+        if (segmentSizeMax > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments must be small enough to memory map");
+        }
+        this.dir = dir;
+        this.segmentSizeMax = segmentSizeMax;
+        this.mappedRegions = new MappedRegionCache<>(mappedBytesMax);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create block store directory " + dir);
+        }
+        recover();
+        // Recovered segments may be hard linked into a snapshot, so they are never appended to again.
+        roll();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public void put(BlockMessage store) throws IOException {
+        ByteString record = store.toByteString();
+        synchronized (writeLock) {
+            long offset = append(record);
+            track(index.put(store.getBlockId(),
+                    new Location(active.id, offset + BlockMessage.HEADER_SIZE, store.getPayload().size())));
+        }
+    }
+
+    public void delete(long blockId) throws IOException {
+        synchronized (writeLock) {
+            Location old = index.remove(blockId);
+            if (old == null) {
+                return;
+            }
+            append(BlockMessage.delete(blockId).toByteString());
+            track(old);
+            active.deadBytes.addAndGet(BlockMessage.HEADER_SIZE);
+        }
+    }
+
+    public boolean contains(long blockId) {
+        return index.containsKey(blockId);
+    }
+
+    public int getBlockCount() {
+        return index.size();
+    }
+
+    /**
+     * Returns null if the block is not in the store.
+     */
+    public ByteString get(long blockId) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Location location = index.get(blockId);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get(location.segmentId);
+            return UnsafeByteOperations.unsafeWrap(
+                    mappedRegions.slice(segment.id, segment.channel, location.offset, location.length));
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private void track(Location replaced) {
+        if (replaced != null) {
+            Segment segment = segments.get(replaced.segmentId);
+            if (segment != null) {
+                segment.deadBytes.addAndGet(BlockMessage.HEADER_SIZE + replaced.length);
+            }
+        }
+    }
+
+    private long append(ByteString record) throws IOException {
+        if (active.size.get() > 0 && active.size.get() + record.size() > segmentSizeMax) {
+            active.channel.force(false);
+            roll();
+        }
+        long offset = active.size.get();
+        long position = offset;
+        for (ByteBuffer buffer : record.asReadOnlyByteBufferList()) {
+            while (buffer.hasRemaining()) {
+                position += active.channel.write(buffer, position);
+            }
+        }
+        active.size.set(position);
+        return offset;
+    }
+
+    private void roll() throws IOException {
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = open(new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)), id);
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    private static Segment open(File file, long id) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Rebuilds the index by replaying every segment in order. A torn record at the end of the
+     * last segment (from a crash mid-append) is truncated away.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = open(files[i], id);
+            if (segment.size.get() == 0) {
+                segment.channel.close();
+                Files.delete(segment.file.toPath());
+                continue;
+            }
+            segments.put(id, segment);
+            long validSize = replay(segment);
+            if (validSize < segment.size.get()) {
+                System.out.println("Truncating torn record at " + validSize + " in " + segment.file);
+                segment.channel.truncate(validSize);
+                segment.size.set(validSize);
+            }
+        }
+    }
+
+    private long replay(Segment segment) throws IOException {
+        long position = 0;
+        long size = segment.size.get();
+        ByteBuffer header = ByteBuffer.allocate(BlockMessage.HEADER_SIZE);
+        while (position + BlockMessage.HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            BlockMessage.Op op = BlockMessage.Op.fromCode(header.get());
+            long blockId = header.getLong();
+            int length = header.getInt();
+            if (op == null || length < 0 || position + BlockMessage.HEADER_SIZE + length > size) {
+                break;
+            }
+
+            if (op == BlockMessage.Op.STORE) {
+                track(index.put(blockId, new Location(segment.id, position + BlockMessage.HEADER_SIZE, length)));
+            } else if (op == BlockMessage.Op.DELETE) {
+                track(index.remove(blockId));
+                segment.deadBytes.addAndGet(BlockMessage.HEADER_SIZE);
+            }
+            position += BlockMessage.HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Segment> victims = new ArrayList<>();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveRatio() < COMPACTION_LIVE_RATIO) {
+                    victims.add(segment);
+                }
+            }
+            for (Segment victim : victims) {
+                compact(victim);
+            }
+        }
+    }
+
+    private void compact(Segment victim) throws IOException {
+        long position = 0;
+        long size = victim.size.get();
+        ByteBuffer header = ByteBuffer.allocate(BlockMessage.HEADER_SIZE);
+        while (position + BlockMessage.HEADER_SIZE <= size) {
+            header.clear();
+            readFully(victim.channel, header, position);
+            header.flip();
+            BlockMessage.Op op = BlockMessage.Op.fromCode(header.get());
+            long blockId = header.getLong();
+            int length = header.getInt();
+            long payloadOffset = position + BlockMessage.HEADER_SIZE;
+
+            synchronized (writeLock) {
+                if (op == BlockMessage.Op.STORE) {
+                    Location current = index.get(blockId);
+                    if (current != null && current.segmentId == victim.id && current.offset == payloadOffset) {
+                        ByteBuffer record = ByteBuffer.allocate(BlockMessage.HEADER_SIZE + length);
+                        readFully(victim.channel, record, position);
+                        record.flip();
+                        long offset = append(UnsafeByteOperations.unsafeWrap(record));
+                        index.put(blockId, new Location(active.id, offset + BlockMessage.HEADER_SIZE, length));
+                    }
+                } else if (op == BlockMessage.Op.DELETE) {
+                    // A tombstone only matters while an older segment may still hold the block.
+                    if (segments.firstKey() != victim.id && !index.containsKey(blockId)) {
+                        append(BlockMessage.delete(blockId).toByteString());
+                        active.deadBytes.addAndGet(BlockMessage.HEADER_SIZE);
+                    }
+                }
+            }
+            position = payloadOffset + length;
+        }
+
+        synchronized (writeLock) {
+            active.channel.force(false);
+        }
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(victim.id);
+            mappedRegions.invalidate(victim.id);
+            victim.channel.close();
+            if (!victim.file.delete()) {
+                System.out.println("Could not delete compacted segment " + victim.file);
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Seals the active segment and hard links every sealed segment into {@code targetDir}.
+     * Sealed segments are never modified, so the links are a consistent copy of the store
+     * as of this call without copying any data. Returns the linked file names in order.
+     */
+    public List<String> linkSegments(File targetDir) throws IOException {
+        synchronized (compactionLock) {
+            long sealed;
+            synchronized (writeLock) {
+                active.channel.force(false);
+                sealed = active.id;
+                roll();
+            }
+
+            List<String> names = new ArrayList<>();
+            for (Segment segment : segments.headMap(sealed, true).values()) {
+                Files.createLink(new File(targetDir, segment.file.getName()).toPath(), segment.file.toPath());
+                names.add(segment.file.getName());
+            }
+            return names;
+        }
+    }
+
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            active.channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        segmentLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.force(false);
+                segment.channel.close();
+                mappedRegions.invalidate(segment.id);
+            }
+            segments.clear();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package worker;
+
+import org.apache.ratis.server.storage.FileInfo;
+import org.apache.ratis.server.storage.RaftStorage;
+import org.apache.ratis.statemachine.SnapshotRetentionPolicy;
+import org.apache.ratis.statemachine.StateMachineStorage;
+import org.apache.ratis.statemachine.impl.FileListSnapshotInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshots of the segment block store. Each snapshot is a directory
+ * {@code snapshots/<term>_<index>} under the state machine directory holding hard links to the
+ * sealed segments plus a manifest listing them, so taking a snapshot never copies block data.
+ * The files are what Ratis ships to a lagging follower when it installs the snapshot.
+ */
+public class SegmentSnapshotStorage implements StateMachineStorage {
+    static final String SNAPSHOTS_DIR = "snapshots";
+    static final String MANIFEST = "MANIFEST";
+    private static final String TMP_PREFIX = ".tmp-";
+    private static final Pattern SNAPSHOT_DIR_REGEX = Pattern.compile("(\\d+)_(\\d+)");
+
+    private File stateMachineDir;
+    private volatile FileListSnapshotInfo latestSnapshot;
+
+    @Override
+    public void init(RaftStorage raftStorage) throws IOException {
+        this.stateMachineDir = raftStorage.getStorageDir().getStateMachineDir();
+        loadLatestSnapshot();
+    }
+
+    public File getStateMachineDir() {
+        return stateMachineDir;
+    }
+
+    public File getSnapshotsDir() {
+        return new File(stateMachineDir, SNAPSHOTS_DIR);
+    }
+
+    public File getSnapshotDir(long term, long index) {
+        return new File(getSnapshotsDir(), term + "_" + index);
+    }
+
+    @Override
+    public FileListSnapshotInfo getLatestSnapshot() {
+        return latestSnapshot;
+    }
+
+    public void loadLatestSnapshot() throws IOException {
+        this.latestSnapshot = findLatestSnapshot();
+    }
+
+    /**
+     * Writes the snapshot for (term, index) from segments already linked into {@code tmpDir},
+     * then publishes it with an atomic rename so a crash never leaves a partial snapshot.
+     */
+    public void commitSnapshot(File tmpDir, List<String> segmentNames, long term, long index) throws IOException {
+        List<String> manifest = new ArrayList<>();
+        manifest.add(term + " " + index);
+        for (String name : segmentNames) {
+            manifest.add(name + " " + new File(tmpDir, name).length());
+        }
+        Files.write(new File(tmpDir, MANIFEST).toPath(), manifest);
+
+        File snapshotDir = getSnapshotDir(term, index);
+        Files.move(tmpDir.toPath(), snapshotDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        loadLatestSnapshot();
+    }
+
+    public File newTmpSnapshotDir(long term, long index) throws IOException {
+        File tmpDir = new File(getSnapshotsDir(), TMP_PREFIX + term + "_" + index);
+        deleteRecursively(tmpDir);
+        if (!tmpDir.mkdirs()) {
+            throw new IOException("Could not create snapshot directory " + tmpDir);
+        }
+        return tmpDir;
+    }
+
+    /**
+     * Returns the segment file names recorded in the snapshot's manifest, after checking that
+     * every segment is present with the recorded length.
+     */
+    public List<String> readManifest(File snapshotDir) throws IOException {
+        List<String> lines = Files.readAllLines(new File(snapshotDir, MANIFEST).toPath());
+        List<String> segmentNames = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ");
+            File segment = new File(snapshotDir, parts[0]);
+            if (segment.length() != Long.parseLong(parts[1])) {
+                throw new IOException("Snapshot segment " + segment + " does not match its manifest");
+            }
+            segmentNames.add(parts[0]);
+        }
+        return segmentNames;
+    }
+
+    private FileListSnapshotInfo findLatestSnapshot() throws IOException {
+        File[] dirs = getSnapshotsDir().listFiles(File::isDirectory);
+        if (dirs == null) {
+            return null;
+        }
+
+        File latestDir = null;
+        long latestTerm = -1;
+        long latestIndex = -1;
+        for (File dir : dirs) {
+            Matcher matcher = SNAPSHOT_DIR_REGEX.matcher(dir.getName());
+            if (!matcher.matches() || !new File(dir, MANIFEST).exists()) {
+                continue;
+            }
+            long index = Long.parseLong(matcher.group(2));
+            if (index > latestIndex) {
+                latestDir = dir;
+                latestTerm = Long.parseLong(matcher.group(1));
+                latestIndex = index;
+            }
+        }
+        if (latestDir == null) {
+            return null;
+        }
+
+        List<FileInfo> files = new ArrayList<>();
+        files.add(new FileInfo(new File(latestDir, MANIFEST).toPath(), null));
+        for (String name : readManifest(latestDir)) {
+            files.add(new FileInfo(new File(latestDir, name).toPath(), null));
+        }
+        return new FileListSnapshotInfo(files, latestTerm, latestIndex);
+    }
+
+    @Override
+    public void format() {
+    }
+
+    @Override
+    public void cleanupOldSnapshots(SnapshotRetentionPolicy policy) throws IOException {
+        int retained = policy.getNumSnapshotsRetained();
+        File[] dirs = getSnapshotsDir().listFiles(dir -> SNAPSHOT_DIR_REGEX.matcher(dir.getName()).matches());
+        if (retained <= 0 || dirs == null || dirs.length <= retained) {
+            return;
+        }
+
+        Arrays.sort(dirs, Comparator.comparingLong(
+                (File dir) -> Long.parseLong(dir.getName().substring(dir.getName().indexOf('_') + 1))).reversed());
+        for (int i = retained; i < dirs.length; i++) {
+            deleteRecursively(dirs[i]);
+        }
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}